@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+/**
+ * Limits the number of requests in flight, adapting the limit to the observed
+ * latency in the style of a latency gradient: while recent latencies stay
+ * close to the long-term average the limit grows, and as they rise above it,
+ * which means requests are queueing somewhere, the limit shrinks in
+ * proportion. Requests beyond the limit should be rejected at once so that
+ * the latency of admitted requests stays bounded under overload.
+ * 
+ * <pre>
+ * dispatcher.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter());
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	private static final int DEFAULT_INITIAL_LIMIT = 20;
+	private static final int DEFAULT_MAX_LIMIT = 1000;
+	private static final int DEFAULT_MIN_LIMIT = 1;
+	private static final double LONG_WINDOW = 600;
+	private static final double MAX_DRIFT = 2.0;
+	private static final double MIN_GRADIENT = 0.5;
+	private static final double SMOOTHING = 0.2;
+	private static final double TOLERANCE = 1.5;
+
+	private int inFlight = 0;
+	private double limit;
+	private double longRtt = 0;
+	private final int maxLimit;
+	private final int minLimit;
+
+	/**
+	 * Construct a limiter starting at 20 requests in flight, adapting between
+	 * 1 and 1000.
+	 */
+	public AdaptiveConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+	}
+
+	/**
+	 * @param initialLimit
+	 *            the limit before any latency has been measured
+	 * @param minLimit
+	 *            the lowest the limit may fall to
+	 * @param maxLimit
+	 *            the highest the limit may rise to
+	 */
+	public AdaptiveConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+			throw new IllegalArgumentException();
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Returns the number of requests admitted and not yet released.
+	 * 
+	 * @return requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+
+	/**
+	 * Returns the current limit of requests in flight.
+	 * 
+	 * @return the limit
+	 */
+	public synchronized int getLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * Releases an admitted request without a latency sample, as when it
+	 * failed before doing any work.
+	 */
+	public synchronized void release() {
+		this.inFlight--;
+	}
+
+	/**
+	 * Releases an admitted request and adapts the limit to its latency.
+	 * 
+	 * @param rttNanos
+	 *            nanoseconds from admission until the request completed
+	 */
+	public synchronized void release(final long rttNanos) {
+
+		this.inFlight--;
+
+		final double rtt = Math.max(1, rttNanos);
+		if (this.longRtt == 0)
+			this.longRtt = rtt;
+		else
+			this.longRtt += (rtt - this.longRtt) / LONG_WINDOW;
+
+		// after a sustained slowdown recover quickly once latency drops again
+		if (this.longRtt / rtt > MAX_DRIFT)
+			this.longRtt *= 0.95;
+
+		// the limit is not the bottleneck, so there is nothing to learn
+		if (this.inFlight + 1 < this.limit / 2)
+			return;
+
+		final double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * this.longRtt / rtt));
+		final double queueSize = Math.sqrt(this.limit);
+		final double newLimit = this.limit * gradient + queueSize;
+
+		this.limit = this.limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, this.limit));
+
+	}
+
+	/**
+	 * Admits a request if fewer than the limit are in flight. Every admitted
+	 * request must be released exactly once.
+	 * 
+	 * @return true if admitted, false if the request should be rejected.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (this.inFlight >= (int) this.limit)
+			return false;
+		this.inFlight++;
+		return true;
+	}
+
+}
@@ -16,6 +16,8 @@
 
 package mongrel2;
 
+import java.lang.reflect.Method;
+
 import org.zeromq.ZMQ;
 
 /**
@@ -27,15 +29,21 @@ import org.zeromq.ZMQ;
 public class App {
 
 	/**
-	 * Class to retrieve the ZeroMQ version as it isn't exposed pubicly by jzmq.
-	 * 
+	 * Retrieves the ZeroMQ version, which is only exposed publicly by recent
+	 * jzmq versions and by jeromq.
 	 */
-	private static class ZmqVersion extends ZMQ {
-		public static int[] version() {
-			final int major = version_major();
-			final int minor = version_minor();
-			final int patch = version_patch();
-			return new int[] { major, minor, patch };
+	private static String getZmqVersion() throws Exception {
+		try {
+			return (String) ZMQ.class.getMethod("getVersionString").invoke(null);
+		} catch (final NoSuchMethodException x) {
+			final int[] v = new int[3];
+			final String[] names = { "version_major", "version_minor", "version_patch" };
+			for (int i = 0; i < names.length; i++) {
+				final Method m = ZMQ.class.getDeclaredMethod(names[i]);
+				m.setAccessible(true);
+				v[i] = (Integer) m.invoke(null);
+			}
+			return v[0] + "." + v[1] + "." + v[2];
 		}
 	}
 
@@ -46,9 +54,7 @@ public class App {
 		final String versionMaven = p.getSpecificationVersion();
 		final String[] version = p.getImplementationVersion().split(" ", 2);
 
-		final int[] v = ZmqVersion.version();
-
-		System.out.printf("%s version:      %s.%s.%s%n", "ZeroMQ", v[0], v[1], v[2]);
+		System.out.printf("%s version:      %s%n", "ZeroMQ", getZmqVersion());
 		System.out.printf("%s version:      %s%n", appname, versionMaven);
 		System.out.printf("%s build time:   %s%n", appname, version[1]);
 		System.out.printf("%s build commit: %s%n", appname, version[0]);
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends responses asynchronously from a dedicated thread. Responses are
+ * encoded by the calling thread, accepted into a bounded queue and published
+ * back-to-back by the writer thread, so a slow send never stalls the
+ * application threads. What happens when the queue is full is governed by the
+ * {@link Backpressure} policy.
+ * 
+ * The writer thread takes over the handler's publishing socket: once the
+ * writer is started, responses must no longer be sent through the handler
+ * directly. The response and its recipients may be reused as soon as
+ * {@link #sendResponse(Response, Request...)} returns.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class AsyncResponseWriter implements Responder {
+
+	/**
+	 * Policy applied when a response is sent while the queue is full.
+	 */
+	public enum Backpressure {
+		/** Wait until the queue has room. */
+		BLOCK,
+		/** Discard the response and count it as dropped. */
+		DROP,
+		/** Throw an IOException to the sender. */
+		FAIL
+	}
+
+	private static final int MAX_WRITE_BATCH = 64;
+	private static final long POLL_INTERVAL = 100;
+
+	private final Backpressure backpressure;
+	private final AtomicLong dropped;
+	private final Mongrel2Handler handler;
+	private final BlockingQueue<byte[]> queue;
+	private final AtomicBoolean running;
+	private Thread writerThread = null;
+
+	/**
+	 * Construct a writer which blocks senders while the queue is full.
+	 * 
+	 * @param handler
+	 *            the active handler whose responses are written
+	 * @param capacity
+	 *            the maximum number of queued responses
+	 */
+	public AsyncResponseWriter(final Mongrel2Handler handler, final int capacity) {
+		this(handler, capacity, Backpressure.BLOCK);
+	}
+
+	/**
+	 * Construct a writer.
+	 * 
+	 * @param handler
+	 *            the active handler whose responses are written
+	 * @param capacity
+	 *            the maximum number of queued responses
+	 * @param backpressure
+	 *            the policy applied when the queue is full
+	 */
+	public AsyncResponseWriter(final Mongrel2Handler handler, final int capacity, final Backpressure backpressure) {
+		this.handler = handler;
+		this.backpressure = backpressure;
+		this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+		this.dropped = new AtomicLong();
+		this.running = new AtomicBoolean();
+	}
+
+	/**
+	 * Returns the number of responses discarded because the queue was full.
+	 * 
+	 * @return number of dropped responses
+	 */
+	public long getDroppedCount() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Returns the number of responses waiting to be written.
+	 * 
+	 * @return current queue depth
+	 */
+	public int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Returns if the writer thread is running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Encode a response to one or more requests and queue it for the writer
+	 * thread. May be called from any thread.
+	 * 
+	 * @param response
+	 *            the response to send
+	 * @param recipients
+	 *            one or more requests to receive the response.
+	 * @throws IOException
+	 *             if the queue is full and the policy is FAIL, or if the
+	 *             response cannot be encoded
+	 */
+	@Override
+	public void sendResponse(final Response response, final Request... recipients) throws IOException {
+
+		if (recipients == null || recipients.length == 0)
+			throw new IllegalArgumentException();
+
+		// encode now, as the caller may reuse the response and requests
+		final byte[] pending = Mongrel2Handler.encodeResponse(response, recipients);
+
+		switch (this.backpressure) {
+
+		case BLOCK:
+			try {
+				this.queue.put(pending);
+			} catch (final InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for room in the response queue.");
+			}
+			break;
+
+		case DROP:
+			if (!this.queue.offer(pending))
+				this.dropped.incrementAndGet();
+			break;
+
+		case FAIL:
+			if (!this.queue.offer(pending))
+				throw new IOException("Response queue full.");
+			break;
+
+		}
+
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public synchronized void start() {
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		}, "mongrel2-response-writer");
+		this.writerThread.start();
+
+	}
+
+	/**
+	 * Stop the writer thread after all queued responses have been written.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		this.writerThread.join();
+		this.writerThread = null;
+
+	}
+
+	private void runWriter() {
+
+		final List<byte[]> batch = new ArrayList<byte[]>(MAX_WRITE_BATCH);
+
+		while (this.running.get() || !this.queue.isEmpty()) {
+
+			try {
+				final byte[] first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+			} catch (final InterruptedException x) {
+				continue;
+			}
+
+			this.queue.drainTo(batch, MAX_WRITE_BATCH - 1);
+
+			for (final byte[] message : batch) {
+				try {
+					this.handler.send(message);
+				} catch (final Exception x) {
+					x.printStackTrace();
+				}
+			}
+
+			batch.clear();
+
+		}
+
+	}
+
+}
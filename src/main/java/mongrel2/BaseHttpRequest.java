@@ -16,46 +16,101 @@
 
 package mongrel2;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.io.ByteArrayOutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
 /**
+ * Bare HTTP request as received from the Mongrel2 web server.
  * 
- * BaseHttpRequest which does nothing at the moment.
+ * Fields derived from the headers, such as the server name, the servlet path
+ * and the parameters, are computed on first access and again after a header
+ * or the content is set. Parameters are taken from the query string and from
+ * application/x-www-form-urlencoded or multipart/form-data bodies, whose
+ * parts are available with {@link #getParts()}. Query and form parameters
+ * with an invalid escape sequence are skipped, and a malformed multipart
+ * body, such as one without a boundary, has no parameters or parts. Parameters
+ * set with {@link #setParameter(String, String[])} or
+ * {@link #addParameter(String, String)} are kept and replace decoded values
+ * of the same name.
  * 
  * @author Karl Ostendorf
  * 
  */
 public class BaseHttpRequest extends Request {
 
-	private static final String H_METHOD = "METHOD";
-	private static final String H_PATH = "PATH";
-	private static final String H_PATTERN = "PATTERN";
-	private static final String H_PROTOCOL = "VERSION";
-	private static final String H_QUERY_STRING = "QUERY";
+	private static final String HTTP = "http";
+	private static final String HTTPS = "https";
 
-	private final SimpleDateFormat df;
+	/**
+	 * Decodes a region of a URL encoded string. Regions without '%' or '+'
+	 * are returned as they are.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if an escape sequence is invalid
+	 */
+	static String urlDecode(final String s, final int start, final int end) {
+
+		int i = start;
+		while (i < end && s.charAt(i) != '%' && s.charAt(i) != '+')
+			i++;
+		if (i == end)
+			return s.substring(start, end);
+
+		final StringBuilder sb = new StringBuilder(end - start);
+		sb.append(s, start, i);
+		ByteArrayOutputStream bytes = null;
+		while (i < end) {
+			final char c = s.charAt(i);
+			if (c == '%') {
+				if (bytes == null)
+					bytes = new ByteArrayOutputStream(end - i);
+				while (i < end && s.charAt(i) == '%') {
+					if (i + 2 >= end)
+						throw new IllegalArgumentException("Incomplete escape sequence in " + s);
+					final int hi = Character.digit(s.charAt(i + 1), 16);
+					final int lo = Character.digit(s.charAt(i + 2), 16);
+					if (hi < 0 || lo < 0)
+						throw new IllegalArgumentException("Invalid escape sequence in " + s);
+					bytes.write((hi << 4) | lo);
+					i += 3;
+				}
+				sb.append(new String(bytes.toByteArray(), UTF8));
+				bytes.reset();
+			} else {
+				sb.append((c == '+') ? ' ' : c);
+				i++;
+			}
+		}
+		return sb.toString();
+
+	}
+
+	private Map<String, String[]> callerParams = null; // kept when the parameters are decoded again
+	private SimpleDateFormat df = null;
+	private boolean hostParsed = false;
 	private final Map<String, String[]> params;
+	private boolean paramsParsed = false;
+	private List<Part> parts = null;
 	private String pathinfo = null;
 	private String requestURL = null;
 	private String scheme = null;
-	private boolean secure = false;
 	private String serverName = null;
 	private int serverPort = 0;
 	private String servletPath = null;
 
 	public BaseHttpRequest() {
 		this.params = new HashMap<String, String[]>();
-		this.df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-		this.df.setTimeZone(TimeZone.getTimeZone("GMT"));
 	}
 
 	public boolean containsParameter(final String name) {
+		parseParameters();
 		return this.params.containsKey(name);
 	}
 
@@ -82,7 +137,7 @@ public class BaseHttpRequest extends Request {
 		if (!containsHeader(name))
 			return -1;
 		try {
-			return this.df.parse(getHeader(name)).getTime();
+			return getDateFormat().parse(getHeader(name)).getTime();
 		} catch (final ParseException x) {
 			throw new RuntimeException(x);
 		}
@@ -95,53 +150,128 @@ public class BaseHttpRequest extends Request {
 	}
 
 	public String getMethod() {
-		return getHeader(H_METHOD);
+		return getHeader(KnownHeaders.METHOD);
 	}
 
 	public String getParameter(final String name) {
-		final String key = name;
-		if (containsParameter(key))
-			return getParameterValues(key)[0];
-		return null;
+		final String[] values = getParameterValues(name);
+		return (values == null) ? null : values[0];
 	}
 
 	public Iterable<String> getParameterNames() {
+		parseParameters();
 		return this.params.keySet();
 	}
 
 	public String[] getParameterValues(final String name) {
+		parseParameters();
 		return this.params.get(name);
 	}
 
+	/**
+	 * Returns the first part of a multipart/form-data body with the given
+	 * field name.
+	 * 
+	 * @param name
+	 *            the field name
+	 * @return the part, or null if there is none
+	 */
+	public Part getPart(final String name) {
+		for (final Part part : getParts())
+			if (name.equals(part.getName()))
+				return part;
+		return null;
+	}
+
+	/**
+	 * Returns the parts of a multipart/form-data body, in order. Form fields
+	 * are also available as parameters.
+	 * 
+	 * @return the parts, empty if the body is not multipart/form-data
+	 */
+	public List<Part> getParts() {
+		parseParameters();
+		if (this.parts == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(this.parts);
+	}
+
+	/**
+	 * Returns the request URI less the servlet path.
+	 * 
+	 * @return the path info
+	 */
 	public String getPathInfo() {
+		if (this.pathinfo == null) {
+			final String uri = getRequestURI();
+			final String servletPath = getServletPath();
+			if (uri != null && servletPath != null && uri.length() >= servletPath.length())
+				this.pathinfo = uri.substring(servletPath.length());
+		}
 		return this.pathinfo;
 	}
 
 	public String getProtocol() {
-		return getHeader(H_PROTOCOL);
+		return getHeader(KnownHeaders.VERSION);
 	}
 
 	public String getQueryString() {
-		return getHeader(H_QUERY_STRING);
+		return getHeader(KnownHeaders.QUERY);
 	}
 
 	public String getRequestURI() {
-		return getHeader(H_PATH);
+		return getHeader(KnownHeaders.PATH);
 	}
 
 	public StringBuffer getRequestURL() {
+		if (this.requestURL == null) {
+			final String scheme = getScheme();
+			final int port = getServerPort();
+			final StringBuilder requestURL = new StringBuilder();
+			requestURL.append(scheme);
+			requestURL.append("://");
+			requestURL.append(getServerName());
+			if ((HTTP.equals(scheme) && port != 80) || (HTTPS.equals(scheme) && port != 443)) {
+				requestURL.append(':');
+				requestURL.append(port);
+			}
+			requestURL.append(getRequestURI());
+			this.requestURL = requestURL.toString();
+		}
 		return new StringBuffer(this.requestURL);
 	}
 
+	/**
+	 * Returns the scheme of the request, as given by Mongrel2 in the
+	 * URL_SCHEME header, otherwise, from the protocol.
+	 * 
+	 * @return the scheme, such as http or https
+	 */
 	public String getScheme() {
+		if (this.scheme == null) {
+			String scheme = getHeader(KnownHeaders.URL_SCHEME);
+			if (scheme == null) {
+				final String protocol = getProtocol();
+				final int slash = (protocol == null) ? -1 : protocol.indexOf('/');
+				scheme = (slash == -1) ? protocol : protocol.substring(0, slash);
+			}
+			if (HTTP.equalsIgnoreCase(scheme))
+				this.scheme = HTTP;
+			else if (HTTPS.equalsIgnoreCase(scheme))
+				this.scheme = HTTPS;
+			else if (scheme != null)
+				this.scheme = scheme.toLowerCase();
+		}
 		return this.scheme;
 	}
 
 	public String getServerName() {
+		parseHost();
 		return this.serverName;
 	}
 
 	public int getServerPort() {
+		parseHost();
 		return this.serverPort;
 	}
 
@@ -152,15 +282,25 @@ public class BaseHttpRequest extends Request {
 	 * @return the handler path used to match this request
 	 */
 	public String getServletPath() {
+		if (this.servletPath == null) {
+			// servlet path: handler path with out the pattern
+			final String pattern = getHeader(KnownHeaders.PATTERN);
+			final int posPatternStart = (pattern == null) ? -1 : pattern.indexOf('(');
+			if (posPatternStart == -1) {
+				this.servletPath = pattern;
+			} else {
+				this.servletPath = pattern.substring(0, posPatternStart);
+			}
+		}
 		return this.servletPath;
 	}
 
 	public boolean isSecure() {
-		return this.secure;
+		return HTTPS.equals(getScheme());
 	}
 
 	protected void addDateHeader(final String name, final long value) {
-		addHeader(name, this.df.format(value));
+		addHeader(name, getDateFormat().format(value));
 	}
 
 	protected void addIntHeader(final String name, final int value) {
@@ -168,6 +308,7 @@ public class BaseHttpRequest extends Request {
 	}
 
 	protected void addParameter(final String name, final String value) {
+		parseParameters();
 		if (!containsParameter(name)) {
 			setParameter(name, value);
 		} else {
@@ -181,62 +322,16 @@ public class BaseHttpRequest extends Request {
 	}
 
 	@Override
-	protected void parse(final byte[] raw) {
-
-		super.parse(raw);
-
-		// calculate fields
-
-		// scheme
-		this.scheme = getProtocol().split("/")[0].toLowerCase();
-
-		// secure
-		this.secure = (getScheme().equals("https"));
-
-		// host and port
-		final String[] hostport = getHeader("host").split(":");
-		this.serverName = hostport[0];
-		this.serverPort = Integer.parseInt(hostport[1]);
-
-		// servlet path: handler path with out the pattern
-		final int posPatternStart = getHeader(H_PATTERN).indexOf('(');
-		if (posPatternStart == -1) {
-			this.servletPath = getHeader(H_PATTERN);
-		} else {
-			this.servletPath = getHeader(H_PATTERN).substring(0, posPatternStart);
-		}
-
-		// path info: URI - PATTERN
-		this.pathinfo = getRequestURI().substring(getServletPath().length());
-
-		// requestURL
-		final StringBuilder requestURL = new StringBuilder();
-		requestURL.append(getScheme());
-		requestURL.append("://");
-		requestURL.append(getServerName());
-		if ((getScheme().equals("http") && getServerPort() != 80)
-				|| (getScheme().equals("https") && getServerPort() != 443)) {
-			requestURL.append(':');
-			requestURL.append(getServerPort());
-		}
-		requestURL.append(getRequestURI());
-		this.requestURL = requestURL.toString();
-
-		// parameters
-		if (getQueryString() != null && getQueryString().length() > 0) {
-			try {
-				final String[] paramEntries = getQueryString().split("&");
-				for (final String entry : paramEntries) {
-					final String[] kv = entry.split("=");
-					final String key = URLDecoder.decode(kv[0], UTF8.name());
-					final String value = URLDecoder.decode(kv[1], UTF8.name());
-					addParameter(key, value);
-				}
-			} catch (final UnsupportedEncodingException x) {
-				throw new InternalError("JVM does not support " + UTF8.name());
-			}
-		}
+	protected void reset() {
+		super.reset();
+		this.callerParams = null;
+		clearDerivedFields();
+	}
 
+	@Override
+	protected void setContent(final byte[] content) {
+		super.setContent(content);
+		clearParameters(); // the rest derives from the headers only
 	}
 
 	protected void setContentLength(final int size) {
@@ -248,7 +343,13 @@ public class BaseHttpRequest extends Request {
 	}
 
 	protected void setDateHeader(final String name, final long date) {
-		setHeader(name, this.df.format(date));
+		setHeader(name, getDateFormat().format(date));
+	}
+
+	@Override
+	protected void setHeader(final String name, final String[] values) {
+		super.setHeader(name, values);
+		clearDerivedFields();
 	}
 
 	protected void setIntHeader(final String name, final int value) {
@@ -260,7 +361,158 @@ public class BaseHttpRequest extends Request {
 	}
 
 	protected void setParameter(final String name, final String[] values) {
+		parseParameters();
+		if (this.callerParams == null)
+			this.callerParams = new HashMap<String, String[]>();
+		this.callerParams.put(name, values);
 		this.params.put(name, values);
 	}
 
+	/**
+	 * Adds a value decoded from the query string or the form body.
+	 */
+	private void addDecodedParameter(final String name, final String value) {
+		final String[] values = this.params.get(name);
+		if (values == null) {
+			this.params.put(name, new String[] { value });
+		} else {
+			final String[] newValues = new String[values.length + 1];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			newValues[values.length] = value;
+			this.params.put(name, newValues);
+		}
+	}
+
+	/**
+	 * Forgets the fields computed from the headers and the content. Parameters
+	 * set by the caller are kept.
+	 */
+	private void clearDerivedFields() {
+		this.hostParsed = false;
+		clearParameters();
+		this.pathinfo = null;
+		this.requestURL = null;
+		this.scheme = null;
+		this.serverName = null;
+		this.serverPort = 0;
+		this.servletPath = null;
+	}
+
+	/**
+	 * Forgets the decoded parameters and parts, to be decoded again with the
+	 * parameters set by the caller on next access.
+	 */
+	private void clearParameters() {
+		this.params.clear();
+		this.paramsParsed = false;
+		this.parts = null;
+	}
+
+	private SimpleDateFormat getDateFormat() {
+		if (this.df == null) {
+			this.df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+			this.df.setTimeZone(TimeZone.getTimeZone("GMT"));
+		}
+		return this.df;
+	}
+
+	/**
+	 * Splits the host header into server name and port, defaulting the port
+	 * by scheme.
+	 */
+	private void parseHost() {
+
+		if (this.hostParsed)
+			return;
+		this.hostParsed = true;
+
+		final String host = getHeader(KnownHeaders.HOST);
+		if (host == null)
+			return;
+
+		final int colon = host.lastIndexOf(':');
+		if (colon == -1 || colon < host.lastIndexOf(']')) {
+			this.serverName = host;
+			this.serverPort = HTTPS.equals(getScheme()) ? 443 : 80;
+		} else {
+			this.serverName = host.substring(0, colon);
+			this.serverPort = Integer.parseInt(host.substring(colon + 1));
+		}
+
+	}
+
+	/**
+	 * Decodes the parameters of a form body.
+	 */
+	private void parseForm() {
+
+		final String contentType = getContentType();
+		if (contentType == null || getContentSize() == 0)
+			return;
+
+		final List<String> fields = new ArrayList<String>();
+		List<Part> parts = null;
+		try {
+			if (FormParser.isMediaType(contentType, FormParser.URL_ENCODED)) {
+				FormParser.parseUrlEncoded(getContentData(), getContentOffset(), getContentSize(), fields);
+			} else if (FormParser.isMediaType(contentType, FormParser.MULTIPART)) {
+				final String boundary = FormParser.getHeaderParameter(contentType, "boundary");
+				if (boundary == null || boundary.length() == 0)
+					return;
+				parts = new ArrayList<Part>();
+				FormParser.parseMultipart(getContentData(), getContentOffset(), getContentSize(), boundary, fields,
+						parts);
+			}
+		} catch (final IllegalArgumentException x) {
+			return; // malformed multipart body, no parameters
+		}
+
+		for (int i = 0; i < fields.size(); i += 2)
+			addDecodedParameter(fields.get(i), fields.get(i + 1));
+		this.parts = parts;
+
+	}
+
+	/**
+	 * Decodes the parameters of the query string in a single pass, followed
+	 * by those of a form body. A parameter without '=' has an empty value, one
+	 * with an invalid escape sequence is skipped.
+	 */
+	private void parseParameters() {
+
+		if (this.paramsParsed)
+			return;
+		this.paramsParsed = true;
+
+		final String query = getQueryString();
+		if (query != null) {
+			final int length = query.length();
+			int start = 0;
+			while (start < length) {
+				int end = query.indexOf('&', start);
+				if (end == -1)
+					end = length;
+				if (end > start) {
+					int eq = query.indexOf('=', start);
+					if (eq == -1 || eq > end)
+						eq = end;
+					try {
+						final String name = urlDecode(query, start, eq);
+						addDecodedParameter(name, (eq == end) ? "" : urlDecode(query, eq + 1, end));
+					} catch (final IllegalArgumentException x) {
+						// skip the malformed parameter
+					}
+				}
+				start = end + 1;
+			}
+		}
+
+		parseForm();
+
+		// set by the caller, these replace decoded values
+		if (this.callerParams != null)
+			this.params.putAll(this.callerParams);
+
+	}
+
 }
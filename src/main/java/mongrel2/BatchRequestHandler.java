@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.List;
+
+/**
+ * Application callback handling many requests at once, for instance to look
+ * up the keys of all requests in a single round trip to a store. Used with a
+ * {@link MicroBatchingHandler}.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface BatchRequestHandler {
+
+	/**
+	 * Handle a batch of requests.
+	 * 
+	 * @param requests
+	 *            the requests of the batch, in order of arrival
+	 * @return one response per request, in the same order; a null response
+	 *         answers its request with 500 Internal Server Error
+	 * @throws Exception
+	 *             answers all requests of the batch with 500 Internal Server
+	 *             Error
+	 */
+	List<? extends Response> handleRequests(List<HttpRequest> requests) throws Exception;
+
+}
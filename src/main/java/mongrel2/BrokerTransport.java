@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Connects a worker's {@link Mongrel2Handler} to a {@link Mongrel2Broker}
+ * instead of to Mongrel2. Give the broker's worker address as both the
+ * receive and the send address of the handler, and a sender id unique among
+ * the workers of the broker. The worker announces its capacity to the broker
+ * on activation, repeats it with every heartbeat and withdraws on
+ * deactivation.
+ * 
+ * By default a request is reported complete to the broker with its first
+ * response. Handlers which stream a response in several parts construct the
+ * transport without completion on response and call
+ * {@link #complete(Request...)} after the last part.
+ * 
+ * Requests and responses share a single socket, so receiving and sending
+ * must be done by the same thread, as {@link Mongrel2Dispatcher} does.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class BrokerTransport implements Transport {
+
+	private class BrokerConnection implements Connection {
+
+		private final ZMQ.Socket broker;
+		private long nextHeartbeat;
+		private final ZMQ.Poller poller;
+
+		BrokerConnection(final ZMQ.Context context, final ZMQ.Socket broker) {
+			this.broker = broker;
+			this.poller = context.poller(1);
+			this.poller.register(broker, ZMQ.Poller.POLLIN);
+			this.nextHeartbeat = System.currentTimeMillis() + Mongrel2Broker.HEARTBEAT_INTERVAL;
+		}
+
+		@Override
+		public void close(final long linger) {
+			this.broker.setLinger(linger);
+			this.broker.send(Mongrel2Broker.CMD_BYE, ZMQ.NOBLOCK);
+			this.broker.close();
+			// the context is left to the garbage collector, see ZmqTransport
+		}
+
+		@Override
+		public byte[] receive(final long timeout) {
+
+			final long end = System.currentTimeMillis() + timeout;
+
+			while (true) {
+
+				heartbeat();
+
+				final byte[] command = this.broker.recv(ZMQ.NOBLOCK);
+				if (command != null) {
+					final byte[] payload = this.broker.hasReceiveMore() ? this.broker.recv(0) : null;
+					while (this.broker.hasReceiveMore())
+						this.broker.recv(0); // discard unknown frames
+					if (payload != null && Arrays.equals(command, Mongrel2Broker.CMD_REQUEST))
+						return payload;
+					continue;
+				}
+
+				// wake up for the next heartbeat while waiting
+				final long now = System.currentTimeMillis();
+				if (timeout == 0 || (timeout > 0 && now >= end))
+					return null;
+				final long wait = this.nextHeartbeat - now;
+				this.poller.poll(Math.max(1, (timeout > 0) ? Math.min(wait, end - now) : wait));
+
+			}
+
+		}
+
+		@Override
+		public void send(final int server, final byte[] message) throws IOException {
+			this.broker.send(Mongrel2Broker.CMD_RESPONSE, ZMQ.SNDMORE);
+			this.broker.send(message, 0);
+			if (BrokerTransport.this.completeOnResponse)
+				sendDone(message);
+			heartbeat();
+		}
+
+		/**
+		 * Sends the completions queued by other threads and, when due, a
+		 * heartbeat carrying the capacity of the worker.
+		 */
+		private void heartbeat() {
+
+			String key = BrokerTransport.this.completed.poll();
+			if (key != null) {
+				this.broker.send(Mongrel2Broker.CMD_DONE, ZMQ.SNDMORE);
+				while (key != null) {
+					final String next = BrokerTransport.this.completed.poll();
+					this.broker.send(key.getBytes(Mongrel2Broker.ASCII), (next == null) ? 0 : ZMQ.SNDMORE);
+					key = next;
+				}
+			}
+
+			final long now = System.currentTimeMillis();
+			if (now < this.nextHeartbeat)
+				return;
+			this.nextHeartbeat = now + Mongrel2Broker.HEARTBEAT_INTERVAL;
+			this.broker.send(Mongrel2Broker.CMD_HEARTBEAT, ZMQ.SNDMORE);
+			this.broker.send(Integer.toString(BrokerTransport.this.capacity).getBytes(Mongrel2Broker.ASCII), 0);
+
+		}
+
+		/**
+		 * Reports the recipients of an encoded response complete, which
+		 * starts with the sender followed by a netstring of connection ids.
+		 */
+		private void sendDone(final byte[] message) {
+
+			int p = 0;
+			while (p < message.length && message[p] != ' ')
+				p++;
+			final String sender = new String(message, 0, p, Mongrel2Broker.ASCII);
+			int size = 0;
+			int colon = p + 1;
+			while (colon < message.length && message[colon] >= '0' && message[colon] <= '9')
+				size = size * 10 + (message[colon++] - '0');
+			final int end = Math.min(message.length, colon + 1 + size);
+			if (colon >= message.length || message[colon] != ':' || end <= colon + 1)
+				return;
+
+			this.broker.send(Mongrel2Broker.CMD_DONE, ZMQ.SNDMORE);
+			int start = colon + 1;
+			while (start < end) {
+				int space = start;
+				while (space < end && message[space] != ' ')
+					space++;
+				final String key = sender + ' ' + new String(message, start, space - start, Mongrel2Broker.ASCII);
+				this.broker.send(key.getBytes(Mongrel2Broker.ASCII), (space < end) ? ZMQ.SNDMORE : 0);
+				start = space + 1;
+			}
+
+		}
+
+	}
+
+	private final int capacity;
+	private final boolean completeOnResponse;
+	private final Queue<String> completed;
+	private final int ioThreads;
+
+	/**
+	 * @param capacity
+	 *            the number of requests the worker handles at once, usually
+	 *            its number of worker threads
+	 */
+	public BrokerTransport(final int capacity) {
+		this(capacity, 1);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of requests the worker handles at once, usually
+	 *            its number of worker threads
+	 * @param ioThreads
+	 *            the number of I/O threads of each connection's context
+	 */
+	public BrokerTransport(final int capacity, final int ioThreads) {
+		this(capacity, ioThreads, true);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of requests the worker handles at once, usually
+	 *            its number of worker threads
+	 * @param ioThreads
+	 *            the number of I/O threads of each connection's context
+	 * @param completeOnResponse
+	 *            true to report a request complete with its first response,
+	 *            false to report it only through
+	 *            {@link #complete(Request...)}
+	 */
+	public BrokerTransport(final int capacity, final int ioThreads, final boolean completeOnResponse) {
+		if (capacity < 1 || ioThreads < 1)
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.ioThreads = ioThreads;
+		this.completeOnResponse = completeOnResponse;
+		this.completed = new ConcurrentLinkedQueue<String>();
+	}
+
+	/**
+	 * Reports requests complete to the broker, so they no longer count
+	 * against the capacity of the worker. Only needed without completion on
+	 * response. May be called from any thread; the report is sent by the
+	 * thread receiving requests.
+	 * 
+	 * @param requests
+	 *            the requests answered in full
+	 */
+	public void complete(final Request... requests) {
+		for (final Request request : requests)
+			this.completed.add(request.getSenderAddr() + ' ' + request.getRequestId());
+	}
+
+	@Override
+	public Connection connect(final String senderId, final String[] recvAddrs, final String[] sendAddrs,
+			final Options options) {
+
+		if (recvAddrs.length != 1)
+			throw new IllegalArgumentException("A worker connects to exactly one broker.");
+
+		final ZMQ.Context context = ZMQ.context(this.ioThreads);
+		final ZMQ.Socket broker = context.socket(ZMQ.DEALER);
+		broker.setIdentity(senderId.getBytes());
+		// one socket for both directions, and jzmq 2.1 only offers setHWM, so it takes the larger mark
+		final long highWaterMark = Math.max(options.getReceiveHighWaterMark(), options.getSendHighWaterMark());
+		ZmqTransport.applyOptions(broker, options.getLinger(), highWaterMark, options.getReconnectInterval(),
+				options.getReconnectIntervalMax());
+		if (options.getReceiveBufferSize() >= 0)
+			broker.setReceiveBufferSize(options.getReceiveBufferSize());
+		if (options.getSendBufferSize() >= 0)
+			broker.setSendBufferSize(options.getSendBufferSize());
+		broker.connect(recvAddrs[0]);
+
+		// starts a new session, dropping requests the broker still counts from an earlier one
+		broker.send(Mongrel2Broker.CMD_READY, ZMQ.SNDMORE);
+		broker.send(Integer.toString(this.capacity).getBytes(Mongrel2Broker.ASCII), 0);
+
+		return new BrokerConnection(context, broker);
+
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Client for the Mongrel2 control port, the ZeroMQ REQ/REP socket configured
+ * with the control_port setting, over which m2sh queries the server. Commands
+ * and replies are tnetstrings. A client is not thread-safe.
+ * 
+ * <pre>
+ * ControlPortClient control = new ControlPortClient(&quot;ipc://run/control&quot;, 1000);
+ * int connections = control.getConnectionCount();
+ * control.close();
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class ControlPortClient {
+
+	private static final String KEY_ROWS = "rows";
+
+	private final String addr;
+	private final ZMQ.Context context;
+	private ZMQ.Poller poller = null;
+	private ZMQ.Socket socket = null;
+	private final long timeout;
+
+	/**
+	 * @param addr
+	 *            the address of the control port
+	 * @param timeout
+	 *            milliseconds to wait for each reply
+	 */
+	public ControlPortClient(final String addr, final long timeout) {
+		this.addr = addr;
+		this.timeout = timeout;
+		this.context = ZMQ.context(1);
+	}
+
+	/**
+	 * Close the connection to the control port.
+	 */
+	public void close() {
+		disconnect();
+		this.context.term();
+	}
+
+	/**
+	 * Returns the number of client connections open on the server, from the
+	 * rows of the "status what=net" command.
+	 * 
+	 * @return number of connections
+	 * @throws IOException
+	 */
+	public int getConnectionCount() throws IOException {
+		return getRows(send("status", Collections.<String, Object> singletonMap("what", "net"))).size();
+	}
+
+	/**
+	 * Returns the number of tasks running on the server, from the rows of the
+	 * "status what=tasks" command.
+	 * 
+	 * @return number of tasks
+	 * @throws IOException
+	 */
+	public int getTaskCount() throws IOException {
+		return getRows(send("status", Collections.<String, Object> singletonMap("what", "tasks"))).size();
+	}
+
+	/**
+	 * Sends a command and waits for its reply. If no reply arrives in time the
+	 * socket is reset, as a REQ socket cannot send again before receiving.
+	 * 
+	 * @param command
+	 *            the name of the command, such as "status"
+	 * @param args
+	 *            the arguments of the command
+	 * @return the parsed reply
+	 * @throws IOException
+	 *             if no reply arrived within the timeout
+	 */
+	public Object send(final String command, final Map<String, Object> args) throws IOException {
+
+		if (this.socket == null)
+			connect();
+
+		this.socket.send(TNetStrings.encode(Arrays.asList(command, args)), 0);
+
+		if (this.poller.poll(this.timeout) <= 0) {
+			disconnect();
+			throw new IOException("No reply from Mongrel2 control port: " + this.addr);
+		}
+
+		try {
+			return TNetStrings.parse(this.socket.recv(0));
+		} catch (final IllegalArgumentException x) {
+			throw new IOException("Invalid reply from Mongrel2 control port: " + x.getMessage());
+		}
+
+	}
+
+	private void connect() {
+		this.socket = this.context.socket(ZMQ.REQ);
+		this.socket.setLinger(0);
+		this.socket.connect(this.addr);
+		this.poller = this.context.poller(1);
+		this.poller.register(this.socket, ZMQ.Poller.POLLIN);
+	}
+
+	private void disconnect() {
+		if (this.socket == null)
+			return;
+		this.poller = null;
+		this.socket.close();
+		this.socket = null;
+	}
+
+	private List<?> getRows(final Object reply) throws IOException {
+		if (reply instanceof Map) {
+			final Object rows = ((Map<?, ?>) reply).get(KEY_ROWS);
+			if (rows instanceof List)
+				return (List<?>) rows;
+		}
+		throw new IOException("Unexpected reply from Mongrel2 control port: " + reply);
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass parsers for HTML form bodies, application/x-www-form-urlencoded
+ * and multipart/form-data, working directly over the request body bytes.
+ * Form fields are collected as names and values; the content of multipart
+ * parts is not copied.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+final class FormParser {
+
+	static final String MULTIPART = "multipart/form-data";
+	static final String URL_ENCODED = "application/x-www-form-urlencoded";
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] CRLFCRLF = { '\r', '\n', '\r', '\n' };
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Returns the value of a parameter of a header value such as
+	 * "multipart/form-data; boundary=xyz", unquoted.
+	 * 
+	 * @param value
+	 *            the header value
+	 * @param name
+	 *            the name of the parameter, matched ignoring case
+	 * @return the value of the parameter, or null if absent
+	 */
+	static String getHeaderParameter(final String value, final String name) {
+		int start = value.indexOf(';');
+		while (start != -1) {
+			int end = start + 1;
+			boolean quoted = false;
+			while (end < value.length() && (quoted || value.charAt(end) != ';')) {
+				if (value.charAt(end) == '"')
+					quoted = !quoted;
+				end++;
+			}
+			final int eq = value.indexOf('=', start);
+			if (eq != -1 && eq < end && value.substring(start + 1, eq).trim().equalsIgnoreCase(name)) {
+				final String v = value.substring(eq + 1, end).trim();
+				if (v.length() >= 2 && v.charAt(0) == '"' && v.charAt(v.length() - 1) == '"')
+					return v.substring(1, v.length() - 1);
+				return v;
+			}
+			start = (end < value.length()) ? end : -1;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns if the media type of a Content-Type header value, ignoring its
+	 * parameters, equals the given type.
+	 */
+	static boolean isMediaType(final String contentType, final String type) {
+		final int semicolon = contentType.indexOf(';');
+		final int end = (semicolon == -1) ? contentType.length() : semicolon;
+		int start = 0;
+		while (start < end && contentType.charAt(start) == ' ')
+			start++;
+		int last = end;
+		while (last > start && contentType.charAt(last - 1) == ' ')
+			last--;
+		return last - start == type.length() && contentType.regionMatches(true, start, type, 0, type.length());
+	}
+
+	/**
+	 * Parses a multipart/form-data body. Parts without a file name are added
+	 * to the fields, all parts are added to the given list.
+	 * 
+	 * @param data
+	 *            the array containing the body
+	 * @param offset
+	 *            the start of the body
+	 * @param length
+	 *            the length of the body
+	 * @param boundary
+	 *            the boundary parameter of the Content-Type header
+	 * @param fields
+	 *            receives the names and values of the form fields,
+	 *            alternately
+	 * @param parts
+	 *            receives the parts
+	 * @throws IllegalArgumentException
+	 *             if the body is malformed
+	 */
+	static void parseMultipart(final byte[] data, final int offset, final int length, final String boundary,
+			final List<String> fields, final List<Part> parts) {
+
+		final byte[] delimiter = ("\r\n--" + boundary).getBytes(UTF8);
+		final int limit = offset + length;
+
+		// the first delimiter may be at the very start, without the CRLF
+		int p;
+		if (startsWith(data, offset, limit, delimiter, 2))
+			p = offset + delimiter.length - 2;
+		else {
+			final int first = indexOf(data, offset, limit, delimiter);
+			if (first == -1)
+				throw new IllegalArgumentException("Multipart boundary not found");
+			p = first + delimiter.length;
+		}
+
+		while (true) {
+
+			// after a delimiter: "--" ends the body, otherwise CRLF starts a part
+			if (p + 2 <= limit && data[p] == '-' && data[p + 1] == '-')
+				return;
+			while (p < limit && (data[p] == ' ' || data[p] == '\t'))
+				p++;
+			if (!startsWith(data, p, limit, CRLF, 0))
+				throw new IllegalArgumentException("Malformed multipart delimiter");
+			p += CRLF.length;
+
+			// part headers end with an empty line
+			final Map<String, String> headers = new HashMap<String, String>();
+			final int headersEnd;
+			if (startsWith(data, p, limit, CRLF, 0)) {
+				headersEnd = p;
+			} else {
+				headersEnd = indexOf(data, p, limit, CRLFCRLF);
+				if (headersEnd == -1)
+					throw new IllegalArgumentException("Unterminated multipart headers");
+				parseHeaders(data, p, headersEnd, headers);
+				p = headersEnd + CRLF.length;
+			}
+			final int contentStart = p + CRLF.length;
+
+			final int contentEnd = indexOf(data, contentStart, limit, delimiter);
+			if (contentEnd == -1)
+				throw new IllegalArgumentException("Unterminated multipart part");
+
+			final String disposition = headers.get("CONTENT-DISPOSITION");
+			final String name = (disposition == null) ? null : getHeaderParameter(disposition, "name");
+			final String fileName = (disposition == null) ? null : getHeaderParameter(disposition, "filename");
+			final Part part = new Part(name, fileName, headers, data, contentStart, contentEnd - contentStart);
+			parts.add(part);
+			if (name != null && fileName == null) {
+				fields.add(name);
+				fields.add(new String(data, contentStart, contentEnd - contentStart, UTF8));
+			}
+
+			p = contentEnd + delimiter.length;
+
+		}
+
+	}
+
+	/**
+	 * Parses an application/x-www-form-urlencoded body. A field without '='
+	 * has an empty value, one with an invalid escape sequence is skipped, as
+	 * in the query string.
+	 * 
+	 * @param data
+	 *            the array containing the body
+	 * @param offset
+	 *            the start of the body
+	 * @param length
+	 *            the length of the body
+	 * @param fields
+	 *            receives the names and values of the form fields,
+	 *            alternately
+	 */
+	static void parseUrlEncoded(final byte[] data, final int offset, final int length, final List<String> fields) {
+		final int limit = offset + length;
+		int start = offset;
+		while (start < limit) {
+			int end = start;
+			int eq = -1;
+			while (end < limit && data[end] != '&') {
+				if (eq == -1 && data[end] == '=')
+					eq = end;
+				end++;
+			}
+			if (end > start) {
+				try {
+					final String name = urlDecode(data, start, (eq == -1) ? end : eq);
+					final String value = (eq == -1) ? "" : urlDecode(data, eq + 1, end);
+					fields.add(name);
+					fields.add(value);
+				} catch (final IllegalArgumentException x) {
+					// skip the malformed field
+				}
+			}
+			start = end + 1;
+		}
+	}
+
+	private static int indexOf(final byte[] data, final int from, final int limit, final byte[] pattern) {
+		final int last = limit - pattern.length;
+		final byte first = pattern[0];
+		for (int i = from; i <= last; i++) {
+			if (data[i] != first)
+				continue;
+			int n = 1;
+			while (n < pattern.length && data[i + n] == pattern[n])
+				n++;
+			if (n == pattern.length)
+				return i;
+		}
+		return -1;
+	}
+
+	private static void parseHeaders(final byte[] data, final int start, final int end,
+			final Map<String, String> headers) {
+		int p = start;
+		while (p < end) {
+			int eol = indexOf(data, p, end, CRLF);
+			if (eol == -1)
+				eol = end;
+			final String line = new String(data, p, eol - p, UTF8);
+			final int colon = line.indexOf(':');
+			if (colon > 0)
+				headers.put(line.substring(0, colon).trim().toUpperCase(), line.substring(colon + 1).trim());
+			p = eol + CRLF.length;
+		}
+	}
+
+	private static boolean startsWith(final byte[] data, final int p, final int limit, final byte[] prefix,
+			final int prefixOffset) {
+		final int n = prefix.length - prefixOffset;
+		if (p + n > limit)
+			return false;
+		for (int i = 0; i < n; i++)
+			if (data[p + i] != prefix[prefixOffset + i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Decodes a URL encoded region of bytes as UTF-8. Regions without '%' or
+	 * '+' are decoded directly.
+	 */
+	private static String urlDecode(final byte[] data, final int start, final int end) {
+
+		int i = start;
+		while (i < end && data[i] != '%' && data[i] != '+')
+			i++;
+		if (i == end)
+			return new String(data, start, end - start, UTF8);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(end - start);
+		out.write(data, start, i - start);
+		while (i < end) {
+			final byte b = data[i];
+			if (b == '%') {
+				if (i + 2 >= end)
+					throw new IllegalArgumentException("Incomplete escape sequence in form body");
+				final int hi = Character.digit(data[i + 1], 16);
+				final int lo = Character.digit(data[i + 2], 16);
+				if (hi < 0 || lo < 0)
+					throw new IllegalArgumentException("Invalid escape sequence in form body");
+				out.write((hi << 4) | lo);
+				i += 3;
+			} else {
+				out.write((b == '+') ? ' ' : b);
+				i++;
+			}
+		}
+		return new String(out.toByteArray(), UTF8);
+
+	}
+
+	private FormParser() {
+		// static methods only
+	}
+
+}
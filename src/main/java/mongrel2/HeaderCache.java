@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of parsed request headers. Browsers on keep-alive connections
+ * send nearly the same headers with every request, so requests whose header
+ * block matches an earlier one, apart from the per request PATH, QUERY and
+ * URI headers, share its parsed headers and decode only those three. The
+ * least recently used header blocks are evicted once the capacity is reached.
+ * 
+ * <pre>
+ * Mongrel2Handler handler = new Mongrel2Handler.Builder(SENDER_ID)
+ * 	.recvAddr(RECV_ADDR).sendAddr(SEND_ADDR)
+ * 	.headerCache(new HeaderCache(1000))
+ * 	.build();
+ * </pre>
+ * 
+ * A cache may be shared by several handlers and is safe for use by multiple
+ * threads.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class HeaderCache {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int MAX_SPANS = 8;
+	private static final String[] PER_REQUEST = { "PATH", "QUERY", "URI" };
+	private static final int[] PER_REQUEST_SLOTS = { KnownHeaders.PATH, KnownHeaders.QUERY, KnownHeaders.URI };
+
+	/**
+	 * Immutable headers shared by all requests with the same header block.
+	 */
+	static final class Table {
+
+		final Map<String, String[]> headers; // other than well-known, all keys uppercase
+		final String[] knownHeaderNames; // by KnownHeaders slot
+		final String[][] knownHeaders; // by KnownHeaders slot
+		final Map<String, String> originalKeyNames;
+
+		Table(final String[][] knownHeaders, final String[] knownHeaderNames, final Map<String, String[]> headers,
+				final Map<String, String> originalKeyNames) {
+			this.knownHeaders = knownHeaders;
+			this.knownHeaderNames = knownHeaderNames;
+			this.headers = Collections.unmodifiableMap(headers);
+			this.originalKeyNames = Collections.unmodifiableMap(originalKeyNames);
+		}
+
+	}
+
+	private static class CachedBlock {
+
+		final byte[] key; // the header block less per request values
+		final Table table;
+
+		CachedBlock(final byte[] key, final Table table) {
+			this.key = key;
+			this.table = table;
+		}
+
+	}
+
+	private static long hash(final byte[] data, final int offset, final int length, final int[] spans,
+			final int count) {
+		long hash = FNV_OFFSET_BASIS;
+		int p = offset;
+		for (int i = 0; i <= count; i++) {
+			final int end = (i < count) ? spans[i * 3 + 1] : offset + length;
+			for (; p < end; p++) {
+				hash ^= data[p];
+				hash *= FNV_PRIME;
+			}
+			if (i < count)
+				p = spans[i * 3 + 2];
+		}
+		return hash;
+	}
+
+	private static boolean matches(final byte[] key, final byte[] data, final int offset, final int length,
+			final int[] spans, final int count) {
+		int k = 0;
+		int p = offset;
+		for (int i = 0; i <= count; i++) {
+			final int end = (i < count) ? spans[i * 3 + 1] : offset + length;
+			if (k + end - p > key.length)
+				return false;
+			for (; p < end; p++)
+				if (key[k++] != data[p])
+					return false;
+			if (i < count)
+				p = spans[i * 3 + 2];
+		}
+		return k == key.length;
+	}
+
+	private static void parse(final Request request, final byte[] data, final int offset, final int length,
+			final boolean tnetstring) {
+		if (tnetstring)
+			TNetStrings.parseHeaders(data, offset, length, request);
+		else
+			JsonHeaders.parse(data, offset, length, request);
+	}
+
+	private static byte[] strip(final byte[] data, final int offset, final int length, final int[] spans,
+			final int count) {
+		int size = length;
+		for (int i = 0; i < count; i++)
+			size -= spans[i * 3 + 2] - spans[i * 3 + 1];
+		final byte[] key = new byte[size];
+		int k = 0;
+		int p = offset;
+		for (int i = 0; i <= count; i++) {
+			final int end = (i < count) ? spans[i * 3 + 1] : offset + length;
+			System.arraycopy(data, p, key, k, end - p);
+			k += end - p;
+			if (i < count)
+				p = spans[i * 3 + 2];
+		}
+		return key;
+	}
+
+	private final Map<Long, CachedBlock> entries;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+
+	/**
+	 * Construct a cache of the given number of header blocks.
+	 * 
+	 * @param capacity
+	 *            the maximum number of header blocks to keep
+	 */
+	public HeaderCache(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.entries = new LinkedHashMap<Long, CachedBlock>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Long, CachedBlock> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * Returns the number of requests whose headers were found in the cache.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns the number of requests whose headers had to be parsed.
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Returns the number of header blocks in the cache.
+	 * 
+	 * @return the number of cached header blocks
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Decodes the headers of a raw request into the request, from the cache if
+	 * possible.
+	 * 
+	 * @param request
+	 *            receives the headers
+	 * @param data
+	 *            the raw request
+	 * @param offset
+	 *            the start of the header block
+	 * @param length
+	 *            the length of the header block
+	 * @param tnetstring
+	 *            true if the header block is a tnetstring dict, false if
+	 *            json
+	 */
+	void decode(final Request request, final byte[] data, final int offset, final int length,
+			final boolean tnetstring) {
+
+		final int[] spans = new int[MAX_SPANS * 3];
+		final int count = tnetstring ? TNetStrings.scanHeaders(data, offset, length, PER_REQUEST, spans)
+				: JsonHeaders.scan(data, offset, length, PER_REQUEST, spans);
+		if (count < 0) {
+			// too unusual to be worth caching
+			parse(request, data, offset, length, tnetstring);
+			return;
+		}
+
+		final Long hash = Long.valueOf(hash(data, offset, length, spans, count));
+		final CachedBlock entry;
+		synchronized (this) {
+			entry = this.entries.get(hash);
+		}
+
+		if (entry != null && matches(entry.key, data, offset, length, spans, count)) {
+			this.hits.incrementAndGet();
+			request.setHeaderTable(entry.table);
+			for (int i = 0; i < count; i++) {
+				final String name = PER_REQUEST[spans[i * 3]];
+				final int start = spans[i * 3 + 1];
+				final int end = spans[i * 3 + 2];
+				if (tnetstring)
+					TNetStrings.parseHeaderValues(data, start, end - start, name, request);
+				else
+					JsonHeaders.parseValues(data, start, end - start, name, request);
+			}
+			return;
+		}
+
+		this.misses.incrementAndGet();
+		parse(request, data, offset, length, tnetstring);
+
+		final CachedBlock created = new CachedBlock(strip(data, offset, length, spans, count),
+				request.newHeaderTable(PER_REQUEST_SLOTS));
+		synchronized (this) {
+			this.entries.put(hash, created);
+		}
+
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.nio.charset.Charset;
+
+/**
+ * Lock-free cache of short ASCII strings decoded from raw requests, such as
+ * sender UUIDs, header names, methods and host names, which repeat across
+ * requests. Each string maps to one slot by hash, a colliding string simply
+ * replaces the previous one. Strings are immutable, so the racy updates of
+ * the slots are safe.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+final class Interner {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int MAX_LENGTH = 256;
+	private static final int SIZE = 4096; // power of two
+	private static final String[] STRINGS = new String[SIZE];
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Returns the string for a region of bytes, the same instance as before
+	 * if it was decoded recently. Regions which are long or not ASCII are
+	 * decoded as UTF-8 and not kept.
+	 * 
+	 * @param data
+	 *            the array containing the string
+	 * @param start
+	 *            the start of the string
+	 * @param end
+	 *            the end of the string
+	 * @return the decoded string
+	 */
+	static String intern(final byte[] data, final int start, final int end) {
+
+		final int length = end - start;
+		if (length > MAX_LENGTH)
+			return new String(data, start, length, UTF8);
+
+		int h = 0;
+		for (int p = start; p < end; p++) {
+			if (data[p] < 0)
+				return new String(data, start, length, UTF8);
+			h = 31 * h + data[p];
+		}
+
+		final int i = (h ^ (h >>> 16)) & (SIZE - 1);
+		final String cached = STRINGS[i];
+		if (cached != null && cached.length() == length) {
+			int n = 0;
+			while (n < length && cached.charAt(n) == data[start + n])
+				n++;
+			if (n == length)
+				return cached;
+		}
+
+		final String s = new String(data, start, length, ASCII);
+		STRINGS[i] = s;
+		return s;
+
+	}
+
+	private Interner() {
+		// static methods only
+	}
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.nio.charset.Charset;
+
+/**
+ * Single pass parser for the JSON header block of Mongrel2 requests, a flat
+ * object whose values are strings, or lists of strings for repeated headers.
+ * The bytes are decoded in place and each header is added straight to the
+ * request, without building an intermediate JSON object or string.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+final class JsonHeaders {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Parses the header object in a region of the given array and adds each
+	 * header to the request.
+	 * 
+	 * @param data
+	 *            the array containing the headers
+	 * @param offset
+	 *            the start of the header object
+	 * @param length
+	 *            the length of the header object
+	 * @param request
+	 *            receives the headers
+	 */
+	static void parse(final byte[] data, final int offset, final int length, final Request request) {
+
+		final int limit = offset + length;
+		final int[] pos = new int[] { offset };
+
+		expect(data, pos, limit, '{');
+		if (peek(data, pos, limit) == '}') {
+			pos[0]++;
+		} else {
+			while (true) {
+				final String name = parseString(data, pos, limit, true);
+				expect(data, pos, limit, ':');
+				addValues(data, pos, limit, name, request);
+				if (!next(data, pos, limit, '}'))
+					break;
+			}
+		}
+
+		if (peek(data, pos, limit) != -1)
+			throw invalid(pos[0], "trailing data");
+
+	}
+
+	/**
+	 * Returns the index of the name equal to the given ASCII bytes, or -1.
+	 */
+	static int indexOf(final String[] names, final byte[] data, final int start, final int end) {
+		for (int n = 0; n < names.length; n++) {
+			final String name = names[n];
+			if (name.length() != end - start)
+				continue;
+			int i = 0;
+			while (i < name.length() && data[start + i] == name.charAt(i))
+				i++;
+			if (i == name.length())
+				return n;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds the value of a single header, a string or a list of strings, to
+	 * the request.
+	 * 
+	 * @param data
+	 *            the array containing the value
+	 * @param offset
+	 *            the start of the value
+	 * @param length
+	 *            the length of the value
+	 * @param name
+	 *            the name of the header
+	 * @param request
+	 *            receives the header
+	 */
+	static void parseValues(final byte[] data, final int offset, final int length, final String name,
+			final Request request) {
+		final int[] pos = new int[] { offset };
+		addValues(data, pos, offset + length, name, request);
+		if (peek(data, pos, offset + length) != -1)
+			throw invalid(pos[0], "trailing data");
+	}
+
+	/**
+	 * Locates the values of the given headers in the header object without
+	 * decoding anything. Header names are compared case sensitively.
+	 * 
+	 * @param data
+	 *            the array containing the headers
+	 * @param offset
+	 *            the start of the header object
+	 * @param length
+	 *            the length of the header object
+	 * @param names
+	 *            the names of the headers to find
+	 * @param spans
+	 *            receives the index of the name, the start and the end of
+	 *            each value found
+	 * @return the number of values found, or -1 if there are more than fit
+	 *         into spans
+	 */
+	static int scan(final byte[] data, final int offset, final int length, final String[] names, final int[] spans) {
+
+		final int limit = offset + length;
+		final int[] pos = new int[] { offset };
+		int count = 0;
+		boolean overflow = false;
+
+		expect(data, pos, limit, '{');
+		if (peek(data, pos, limit) == '}') {
+			pos[0]++;
+		} else {
+			while (true) {
+				expect(data, pos, limit, '"');
+				final int nameStart = pos[0];
+				skipString(data, pos, limit);
+				final int nameEnd = pos[0] - 1;
+				expect(data, pos, limit, ':');
+				peek(data, pos, limit);
+				final int valueStart = pos[0];
+				skipValue(data, pos, limit);
+				final int n = indexOf(names, data, nameStart, nameEnd);
+				if (n != -1) {
+					if (count * 3 + 3 > spans.length) {
+						overflow = true;
+					} else {
+						spans[count * 3] = n;
+						spans[count * 3 + 1] = valueStart;
+						spans[count * 3 + 2] = pos[0];
+						count++;
+					}
+				}
+				if (!next(data, pos, limit, '}'))
+					break;
+			}
+		}
+
+		if (peek(data, pos, limit) != -1)
+			throw invalid(pos[0], "trailing data");
+
+		return overflow ? -1 : count;
+
+	}
+
+	private static void addValues(final byte[] data, final int[] pos, final int limit, final String name,
+			final Request request) {
+		final boolean intern = KnownHeaders.isInterned(KnownHeaders.slot(name));
+		if (peek(data, pos, limit) == '[') {
+			pos[0]++;
+			if (peek(data, pos, limit) == ']') {
+				pos[0]++;
+			} else {
+				do {
+					request.addDecodedHeader(name, parseValue(data, pos, limit, intern));
+				} while (next(data, pos, limit, ']'));
+			}
+		} else {
+			request.addDecodedHeader(name, parseValue(data, pos, limit, intern));
+		}
+	}
+
+	private static void expect(final byte[] data, final int[] pos, final int limit, final char c) {
+		if (peek(data, pos, limit) != c)
+			throw invalid(pos[0], "expected '" + c + "'");
+		pos[0]++;
+	}
+
+	private static int hex(final byte b, final int at) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		throw invalid(at, "bad unicode escape");
+	}
+
+	private static IllegalArgumentException invalid(final int at, final String reason) {
+		return new IllegalArgumentException("Cannot parse Json headers at offset " + at + ": " + reason);
+	}
+
+	/**
+	 * Consumes a comma, returning true, or the given closing bracket,
+	 * returning false.
+	 */
+	private static boolean next(final byte[] data, final int[] pos, final int limit, final char close) {
+		final int c = peek(data, pos, limit);
+		pos[0]++;
+		if (c == ',')
+			return true;
+		if (c == close)
+			return false;
+		throw invalid(pos[0] - 1, "expected ',' or '" + close + "'");
+	}
+
+	/**
+	 * Skips whitespace and returns the next byte without consuming it, or -1
+	 * at the end of the region.
+	 */
+	private static int peek(final byte[] data, final int[] pos, final int limit) {
+		int p = pos[0];
+		while (p < limit && (data[p] == ' ' || data[p] == '\t' || data[p] == '\n' || data[p] == '\r'))
+			p++;
+		pos[0] = p;
+		return (p < limit) ? data[p] : -1;
+	}
+
+	/**
+	 * Parses a string, interning it if asked to and it has no escapes.
+	 */
+	private static String parseString(final byte[] data, final int[] pos, final int limit, final boolean intern) {
+
+		expect(data, pos, limit, '"');
+
+		final int start = pos[0];
+		int p = start;
+		while (p < limit && data[p] != '"' && data[p] != '\\')
+			p++;
+		if (p < limit && data[p] == '"') {
+			// common case: nothing to unescape
+			pos[0] = p + 1;
+			return intern ? Interner.intern(data, start, p) : new String(data, start, p - start, UTF8);
+		}
+
+		final StringBuilder sb = new StringBuilder(p - start + 16);
+		int run = start;
+		while (p < limit) {
+			final byte b = data[p];
+			if (b == '"') {
+				sb.append(new String(data, run, p - run, UTF8));
+				pos[0] = p + 1;
+				return sb.toString();
+			} else if (b == '\\') {
+				sb.append(new String(data, run, p - run, UTF8));
+				if (p + 1 >= limit)
+					break;
+				final byte e = data[p + 1];
+				p += 2;
+				switch (e) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append((char) e);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (p + 4 > limit)
+						throw invalid(p, "bad unicode escape");
+					sb.append((char) ((hex(data[p], p) << 12) | (hex(data[p + 1], p) << 8)
+							| (hex(data[p + 2], p) << 4) | hex(data[p + 3], p)));
+					p += 4;
+					break;
+				default:
+					throw invalid(p - 1, "bad escape");
+				}
+				run = p;
+			} else {
+				p++;
+			}
+		}
+
+		throw invalid(start, "unterminated string");
+
+	}
+
+	/**
+	 * Parses a string, or returns the text of a number, boolean or null.
+	 */
+	private static String parseValue(final byte[] data, final int[] pos, final int limit, final boolean intern) {
+
+		final int c = peek(data, pos, limit);
+		if (c == '"')
+			return parseString(data, pos, limit, intern);
+		if (c == -1 || c == '{' || c == '[' || c == ',' || c == '}' || c == ']')
+			throw invalid(pos[0], "expected a value");
+
+		final int start = pos[0];
+		int p = start;
+		while (p < limit && data[p] != ',' && data[p] != '}' && data[p] != ']' && data[p] != ' ' && data[p] != '\t'
+				&& data[p] != '\n' && data[p] != '\r')
+			p++;
+		pos[0] = p;
+		return new String(data, start, p - start, UTF8);
+
+	}
+
+	/**
+	 * Skips the rest of a string whose opening quote was consumed.
+	 */
+	private static void skipString(final byte[] data, final int[] pos, final int limit) {
+		int p = pos[0];
+		while (p < limit) {
+			if (data[p] == '"') {
+				pos[0] = p + 1;
+				return;
+			}
+			p += (data[p] == '\\') ? 2 : 1;
+		}
+		throw invalid(pos[0], "unterminated string");
+	}
+
+	private static void skipValue(final byte[] data, final int[] pos, final int limit) {
+		final int c = peek(data, pos, limit);
+		if (c == '"') {
+			pos[0]++;
+			skipString(data, pos, limit);
+		} else if (c == '[') {
+			pos[0]++;
+			if (peek(data, pos, limit) == ']') {
+				pos[0]++;
+			} else {
+				do {
+					skipValue(data, pos, limit);
+				} while (next(data, pos, limit, ']'));
+			}
+		} else {
+			parseValue(data, pos, limit, false);
+		}
+	}
+
+	private JsonHeaders() {
+		// static methods only
+	}
+
+}
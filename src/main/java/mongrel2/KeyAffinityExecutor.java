@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs requests on a fixed set of single threaded shards, always running
+ * requests with the same key on the same shard. State kept per shard, such as
+ * an in-memory cache, thus stays hot and is only ever touched by one thread,
+ * so it needs no locking. Request handlers find their shard with
+ * {@link #currentShard()}; requests without a key are spread round-robin.
+ * 
+ * <pre>
+ * KeyAffinityExecutor shards = new KeyAffinityExecutor(KeyAffinityExecutor.byCookie(&quot;SESSION&quot;), 8, 100);
+ * Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, requestHandler, shards);
+ * ...
+ * // in the request handler
+ * Cache cache = caches[KeyAffinityExecutor.currentShard()];
+ * </pre>
+ * 
+ * When the queue of a shard is full its requests are answered with 503
+ * Service Unavailable.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class KeyAffinityExecutor implements RequestExecutor {
+
+	private static final String H_COOKIE = "Cookie";
+	private static final long POLL_INTERVAL = 100;
+
+	private static class ShardThread extends Thread {
+
+		private final BlockingQueue<Runnable> queue;
+		private final AtomicBoolean running;
+		private final int shard;
+
+		ShardThread(final int shard, final int queueCapacity, final AtomicBoolean running) {
+			super("mongrel2-affinity-" + shard);
+			this.shard = shard;
+			this.queue = new LinkedBlockingQueue<Runnable>(queueCapacity);
+			this.running = running;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final Runnable task;
+				try {
+					task = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (final InterruptedException x) {
+					return;
+				}
+				if (task == null) {
+					if (!this.running.get())
+						return;
+					continue;
+				}
+				try {
+					task.run();
+				} catch (final RuntimeException x) {
+					x.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Returns a key function selecting the value of a cookie.
+	 * 
+	 * @param name
+	 *            the name of the cookie
+	 */
+	public static RequestKey byCookie(final String name) {
+		return new RequestKey() {
+			@Override
+			public Object getKey(final HttpRequest request) {
+				final String[] values = request.getHeaderValues(H_COOKIE);
+				if (values == null)
+					return null;
+				for (final String value : values) {
+					final String cookie = findCookie(value, name);
+					if (cookie != null)
+						return cookie;
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Returns a key function selecting the first value of a request
+	 * parameter, decoded as by {@link HttpRequest#getParameter(String)}, so
+	 * form parameters are considered after those of the query string.
+	 * 
+	 * @param name
+	 *            the name of the parameter
+	 */
+	public static RequestKey byParameter(final String name) {
+		return new RequestKey() {
+			@Override
+			public Object getKey(final HttpRequest request) {
+				return request.getParameter(name);
+			}
+		};
+	}
+
+	/**
+	 * Returns a key function selecting a segment of the request path.
+	 * 
+	 * @param index
+	 *            the index of the segment, zero for the first after the
+	 *            leading slash
+	 */
+	public static RequestKey byPathSegment(final int index) {
+		if (index < 0)
+			throw new IllegalArgumentException();
+		return new RequestKey() {
+			@Override
+			public Object getKey(final HttpRequest request) {
+				final String path = request.getRequestURI();
+				if (path == null)
+					return null;
+				int start = path.startsWith("/") ? 1 : 0;
+				for (int i = 0; i < index; i++) {
+					start = path.indexOf('/', start) + 1;
+					if (start == 0)
+						return null;
+				}
+				final int end = path.indexOf('/', start);
+				return (end < 0) ? path.substring(start) : path.substring(start, end);
+			}
+		};
+	}
+
+	/**
+	 * Returns the shard of the calling thread.
+	 * 
+	 * @return the index of the shard, or -1 if not called on a shard thread
+	 */
+	public static int currentShard() {
+		final Thread thread = Thread.currentThread();
+		return (thread instanceof ShardThread) ? ((ShardThread) thread).shard : -1;
+	}
+
+	private static String findCookie(final String header, final String name) {
+		int start = 0;
+		while (start < header.length()) {
+			int end = header.indexOf(';', start);
+			if (end < 0)
+				end = header.length();
+			final int eq = header.indexOf('=', start);
+			if (eq > 0 && eq < end && header.substring(start, eq).trim().equals(name))
+				return header.substring(eq + 1, end).trim();
+			start = end + 1;
+		}
+		return null;
+	}
+
+	private final RequestKey key;
+	private int next = 0;
+	private final AtomicBoolean running;
+	private final ShardThread[] shards;
+
+	/**
+	 * @param key
+	 *            extracts the key of each request
+	 * @param shards
+	 *            the number of shards, each with its own thread
+	 * @param queueCapacity
+	 *            the maximum number of requests waiting in each shard
+	 */
+	public KeyAffinityExecutor(final RequestKey key, final int shards, final int queueCapacity) {
+
+		if (key == null || shards < 1 || queueCapacity < 1)
+			throw new IllegalArgumentException();
+
+		this.key = key;
+		this.running = new AtomicBoolean(true);
+		this.shards = new ShardThread[shards];
+		for (int i = 0; i < shards; i++) {
+			this.shards[i] = new ShardThread(i, queueCapacity, this.running);
+			this.shards[i].start();
+		}
+
+	}
+
+	/**
+	 * Waits for the shards to finish the requests queued before
+	 * {@link #shutdown()} and for their threads to end.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if all shards ended, false if the timeout elapsed first
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long end = System.nanoTime() + unit.toNanos(timeout);
+		for (final ShardThread shard : this.shards) {
+			final long remaining = end - System.nanoTime();
+			if (remaining > 0)
+				TimeUnit.NANOSECONDS.timedJoin(shard, remaining);
+			if (shard.isAlive())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void execute(final HttpRequest request, final Runnable task) {
+		if (!this.running.get())
+			throw new RejectedExecutionException("Executor shut down.");
+		if (!this.shards[findShard(request)].queue.offer(task))
+			throw new RejectedExecutionException("Shard queue full.");
+	}
+
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return number of shards
+	 */
+	public int getShardCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * Stop accepting requests; requests already queued are still handled.
+	 * The shard threads are daemons, so wait for them with
+	 * {@link #awaitTermination(long, TimeUnit)} before the application exits.
+	 */
+	public void shutdown() {
+		this.running.set(false);
+	}
+
+	/**
+	 * Returns the shard a request runs on. Only called by the dispatcher's I/O
+	 * thread.
+	 */
+	int findShard(final HttpRequest request) {
+		final Object k = this.key.getKey(request);
+		if (k == null) {
+			this.next = (this.next + 1) % this.shards.length;
+			return this.next;
+		}
+		// spread the bits of poor hash codes
+		int h = k.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % this.shards.length;
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+/**
+ * Table of well-known request headers, the Mongrel2 pseudo headers and the
+ * common HTTP headers, each with a fixed slot. Names are matched ignoring
+ * case without allocating an upper case copy.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+final class KnownHeaders {
+
+	static final int PATH = 0;
+	static final int METHOD = 1;
+	static final int VERSION = 2;
+	static final int URI = 3;
+	static final int QUERY = 4;
+	static final int PATTERN = 5;
+	static final int FRAGMENT = 6;
+	static final int URL_SCHEME = 7;
+	static final int HOST = 8;
+	static final int ACCEPT = 9;
+	static final int ACCEPT_CHARSET = 10;
+	static final int ACCEPT_ENCODING = 11;
+	static final int ACCEPT_LANGUAGE = 12;
+	static final int AUTHORIZATION = 13;
+	static final int CACHE_CONTROL = 14;
+	static final int CONNECTION = 15;
+	static final int CONTENT_LENGTH = 16;
+	static final int CONTENT_TYPE = 17;
+	static final int COOKIE = 18;
+	static final int DATE = 19;
+	static final int ETAG = 20;
+	static final int EXPIRES = 21;
+	static final int IF_MODIFIED_SINCE = 22;
+	static final int IF_NONE_MATCH = 23;
+	static final int LAST_MODIFIED = 24;
+	static final int REFERER = 25;
+	static final int USER_AGENT = 26;
+	static final int X_FORWARDED_FOR = 27;
+
+	/**
+	 * The upper case names by slot.
+	 */
+	static final String[] NAMES = { "PATH", "METHOD", "VERSION", "URI", "QUERY", "PATTERN", "FRAGMENT",
+			"URL_SCHEME", "HOST", "ACCEPT", "ACCEPT-CHARSET", "ACCEPT-ENCODING", "ACCEPT-LANGUAGE", "AUTHORIZATION",
+			"CACHE-CONTROL", "CONNECTION", "CONTENT-LENGTH", "CONTENT-TYPE", "COOKIE", "DATE", "ETAG", "EXPIRES",
+			"IF-MODIFIED-SINCE", "IF-NONE-MATCH", "LAST-MODIFIED", "REFERER", "USER-AGENT", "X-FORWARDED-FOR" };
+
+	static final int COUNT = NAMES.length;
+
+	/**
+	 * Headers whose values repeat across requests and are worth interning.
+	 */
+	private static final int[] INTERNED = { METHOD, VERSION, PATTERN, URL_SCHEME, HOST, ACCEPT, ACCEPT_CHARSET,
+			ACCEPT_ENCODING, ACCEPT_LANGUAGE, CACHE_CONTROL, CONNECTION, CONTENT_TYPE, USER_AGENT, X_FORWARDED_FOR };
+
+	private static final int TABLE_SIZE = 128; // power of two, well above COUNT
+	private static final boolean[] INTERN = new boolean[COUNT];
+	private static final int[] TABLE = new int[TABLE_SIZE]; // slot + 1 by hash, 0 if empty
+
+	static {
+		for (int slot = 0; slot < COUNT; slot++) {
+			int i = hash(NAMES[slot]) & (TABLE_SIZE - 1);
+			while (TABLE[i] != 0)
+				i = (i + 1) & (TABLE_SIZE - 1);
+			TABLE[i] = slot + 1;
+		}
+		for (final int slot : INTERNED)
+			INTERN[slot] = true;
+	}
+
+	/**
+	 * Returns if the values of the header in the given slot should be
+	 * interned.
+	 * 
+	 * @param slot
+	 *            the slot of the header, or -1
+	 * @return true to intern values
+	 */
+	static boolean isInterned(final int slot) {
+		return slot >= 0 && INTERN[slot];
+	}
+
+	/**
+	 * Returns the slot of the header with the given name, ignoring case.
+	 * 
+	 * @param name
+	 *            the name of the header
+	 * @return the slot, or -1 if the header is not well-known
+	 */
+	static int slot(final String name) {
+		final int h = hash(name);
+		for (int i = h & (TABLE_SIZE - 1); TABLE[i] != 0; i = (i + 1) & (TABLE_SIZE - 1)) {
+			final String known = NAMES[TABLE[i] - 1];
+			if (known.length() != name.length())
+				continue;
+			int n = 0;
+			while (n < known.length() && upper(name.charAt(n)) == known.charAt(n))
+				n++;
+			if (n == known.length())
+				return TABLE[i] - 1;
+		}
+		return -1;
+	}
+
+	private static int hash(final String name) {
+		int h = 0;
+		for (int n = 0; n < name.length(); n++)
+			h = 31 * h + upper(name.charAt(n));
+		return h;
+	}
+
+	private static int upper(final int c) {
+		return (c >= 'a' && c <= 'z') ? c - ('a' - 'A') : c;
+	}
+
+	private KnownHeaders() {
+		// static methods only
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes messages between handlers and a simulated Mongrel2 within the JVM,
+ * for tests and benchmarks that should measure the handler and not the
+ * network, and that run without native libraries. The simulated server pushes
+ * requests to an address with {@link #push(String, byte[])}, which are
+ * distributed round-robin among the handlers connected to it, and reads their
+ * responses with {@link #poll(String, long, TimeUnit)}. Responses are kept
+ * until polled.
+ * 
+ * <pre>
+ * LoopbackTransport loopback = new LoopbackTransport();
+ * Mongrel2Handler handler = new Mongrel2Handler.Builder(SENDER_ID).transport(loopback)
+ * 		.recvAddr(&quot;requests&quot;).sendAddr(&quot;responses&quot;).build();
+ * loopback.push(&quot;requests&quot;, rawRequest);
+ * byte[] rawResponse = loopback.poll(&quot;responses&quot;, 1, TimeUnit.SECONDS);
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class LoopbackTransport implements Transport {
+
+	private class LoopbackConnection implements Connection {
+
+		private final BlockingQueue<byte[]> requests;
+		private final String[] recvAddrs;
+		private final List<BlockingQueue<byte[]>> responses;
+
+		LoopbackConnection(final String[] recvAddrs) {
+			this.requests = new LinkedBlockingQueue<byte[]>();
+			this.recvAddrs = recvAddrs;
+			this.responses = new ArrayList<BlockingQueue<byte[]>>();
+		}
+
+		@Override
+		public void close(final long linger) {
+			synchronized (LoopbackTransport.this) {
+				for (final String addr : this.recvAddrs)
+					getEndpoint(addr).pullers.remove(this);
+			}
+		}
+
+		@Override
+		public byte[] receive(final long timeout) {
+			try {
+				if (timeout < 0)
+					return this.requests.take();
+				if (timeout == 0)
+					return this.requests.poll();
+				return this.requests.poll(timeout, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException x) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		@Override
+		public void send(final int server, final byte[] message) throws IOException {
+			this.responses.get(server).add(message);
+		}
+
+	}
+
+	private static class Endpoint {
+		int next = 0;
+		final List<byte[]> pending = new ArrayList<byte[]>();
+		final List<LoopbackConnection> pullers = new ArrayList<LoopbackConnection>();
+		final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<byte[]>();
+	}
+
+	private final Map<String, Endpoint> endpoints;
+
+	public LoopbackTransport() {
+		this.endpoints = new HashMap<String, Endpoint>();
+	}
+
+	@Override
+	public synchronized Connection connect(final String senderId, final String[] recvAddrs,
+			final String[] sendAddrs, final Options options) {
+		final LoopbackConnection connection = new LoopbackConnection(recvAddrs);
+		for (final String addr : sendAddrs)
+			connection.responses.add(getEndpoint(addr).responses);
+		for (final String addr : recvAddrs) {
+			final Endpoint endpoint = getEndpoint(addr);
+			endpoint.pullers.add(connection);
+			connection.requests.addAll(endpoint.pending);
+			endpoint.pending.clear();
+		}
+		return connection;
+	}
+
+	/**
+	 * Reads the next response sent to the given address.
+	 * 
+	 * @param sendAddr
+	 *            the address handlers send responses to
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the raw response or null if none arrived in time
+	 * @throws InterruptedException
+	 */
+	public byte[] poll(final String sendAddr, final long timeout, final TimeUnit unit) throws InterruptedException {
+		return getResponseQueue(sendAddr).poll(timeout, unit);
+	}
+
+	/**
+	 * Delivers a raw request to the next handler connected to the given
+	 * address, or to the first handler to connect if there is none.
+	 * 
+	 * @param recvAddr
+	 *            the address handlers receive requests from
+	 * @param request
+	 *            the raw Mongrel2 request
+	 */
+	public synchronized void push(final String recvAddr, final byte[] request) {
+		final Endpoint endpoint = getEndpoint(recvAddr);
+		if (endpoint.pullers.isEmpty()) {
+			endpoint.pending.add(request);
+			return;
+		}
+		endpoint.next = (endpoint.next + 1) % endpoint.pullers.size();
+		endpoint.pullers.get(endpoint.next).requests.add(request);
+	}
+
+	private Endpoint getEndpoint(final String addr) {
+		Endpoint endpoint = this.endpoints.get(addr);
+		if (endpoint == null) {
+			endpoint = new Endpoint();
+			this.endpoints.put(addr, endpoint);
+		}
+		return endpoint;
+	}
+
+	private synchronized BlockingQueue<byte[]> getResponseQueue(final String addr) {
+		return getEndpoint(addr).responses;
+	}
+
+}
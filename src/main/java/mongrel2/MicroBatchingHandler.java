@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects requests into batches for a {@link BatchRequestHandler}, turning
+ * many backend round trips into one. A batch is closed when it reaches its
+ * maximum size or when the window, counted from the arrival of its first
+ * request, has passed. Each response returned for a batch is sent to its
+ * request through the responder the request arrived with.
+ * 
+ * <pre>
+ * MicroBatchingHandler batcher = new MicroBatchingHandler(batchHandler, 32, 2, TimeUnit.MILLISECONDS);
+ * batcher.start();
+ * Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, batcher, 4);
+ * dispatcher.start();
+ * </pre>
+ * 
+ * The batcher's own thread only collects requests; each closed batch is
+ * handed to an executor, so the next batch fills while the last one is being
+ * handled. Responses are sent from the executor's threads: the responder must
+ * accept responses from any thread, as {@link Mongrel2Dispatcher} and
+ * {@link AsyncResponseWriter} do. A request counts as in flight for the
+ * dispatcher until its batch has answered it.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class MicroBatchingHandler implements RequestHandler {
+
+	private static class PendingRequest {
+
+		final HttpRequest request;
+		final Responder responder;
+
+		PendingRequest(final HttpRequest request, final Responder responder) {
+			this.request = request;
+			this.responder = responder;
+		}
+
+	}
+
+	private static final long POLL_INTERVAL = 100;
+
+	private Thread batchThread = null;
+	private final Executor executor;
+	private final BatchRequestHandler handler;
+	private final int maxBatchSize;
+	private final ExecutorService ownedExecutor;
+	private final BlockingQueue<PendingRequest> queue;
+	private final AtomicBoolean running;
+	private final long window;
+
+	/**
+	 * Construct a batcher which handles one batch at a time on a thread of
+	 * its own, shut down when the batcher stops.
+	 * 
+	 * @param handler
+	 *            the application callback
+	 * @param maxBatchSize
+	 *            the maximum number of requests in a batch
+	 * @param window
+	 *            the maximum time a request waits for others to join its
+	 *            batch
+	 * @param unit
+	 *            the unit of the window
+	 */
+	public MicroBatchingHandler(final BatchRequestHandler handler, final int maxBatchSize, final long window,
+			final TimeUnit unit) {
+		this(handler, maxBatchSize, window, unit, Executors.newSingleThreadExecutor(), true);
+	}
+
+	/**
+	 * Construct a batcher which handles batches on the given executor. The
+	 * executor is not shut down when the batcher stops.
+	 * 
+	 * @param handler
+	 *            the application callback
+	 * @param maxBatchSize
+	 *            the maximum number of requests in a batch
+	 * @param window
+	 *            the maximum time a request waits for others to join its
+	 *            batch
+	 * @param unit
+	 *            the unit of the window
+	 * @param executor
+	 *            the executor on which to run the batch handler
+	 */
+	public MicroBatchingHandler(final BatchRequestHandler handler, final int maxBatchSize, final long window,
+			final TimeUnit unit, final Executor executor) {
+		this(handler, maxBatchSize, window, unit, executor, false);
+	}
+
+	private MicroBatchingHandler(final BatchRequestHandler handler, final int maxBatchSize, final long window,
+			final TimeUnit unit, final Executor executor, final boolean owned) {
+		if (handler == null || maxBatchSize < 1 || window < 0 || executor == null)
+			throw new IllegalArgumentException();
+		this.handler = handler;
+		this.maxBatchSize = maxBatchSize;
+		this.window = unit.toNanos(window);
+		this.executor = executor;
+		this.ownedExecutor = owned ? (ExecutorService) executor : null;
+		this.queue = new LinkedBlockingQueue<PendingRequest>();
+		this.running = new AtomicBoolean();
+	}
+
+	/**
+	 * Queue the request for the next batch. Returns at once; the response is
+	 * sent when the batch has been handled.
+	 */
+	@Override
+	public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+		if (!isRunning())
+			throw new IllegalStateException("Batcher not running.");
+		this.queue.add(new PendingRequest(request, responder));
+	}
+
+	/**
+	 * Returns if the batch thread is running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Start the batch thread.
+	 */
+	public synchronized void start() {
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.batchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runBatcher();
+			}
+		}, "mongrel2-micro-batcher");
+		this.batchThread.start();
+
+	}
+
+	/**
+	 * Stop the batch thread after all queued requests have been handed to the
+	 * executor. An executor created by the batcher is shut down once it has
+	 * handled them.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		this.batchThread.join();
+		this.batchThread = null;
+
+		if (this.ownedExecutor != null) {
+			this.ownedExecutor.shutdown();
+			this.ownedExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+	}
+
+	/**
+	 * Fills the batch until it is full or the window of its first request has
+	 * passed.
+	 */
+	private void fill(final List<PendingRequest> batch) throws InterruptedException {
+		final long deadline = System.nanoTime() + this.window;
+		while (batch.size() < this.maxBatchSize) {
+			this.queue.drainTo(batch, this.maxBatchSize - batch.size());
+			final long remaining = deadline - System.nanoTime();
+			if (batch.size() >= this.maxBatchSize || remaining <= 0)
+				return;
+			final PendingRequest next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next != null)
+				batch.add(next);
+		}
+	}
+
+	private void handle(final List<PendingRequest> batch) {
+
+		final List<HttpRequest> requests = new ArrayList<HttpRequest>(batch.size());
+		for (final PendingRequest pending : batch)
+			requests.add(pending.request);
+
+		List<? extends Response> responses = null;
+		try {
+			responses = this.handler.handleRequests(requests);
+			if (responses == null || responses.size() != batch.size())
+				throw new IllegalStateException("Expected " + batch.size() + " responses.");
+		} catch (final Exception x) {
+			x.printStackTrace();
+			responses = null;
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			final PendingRequest pending = batch.get(i);
+			final Response response = (responses == null) ? null : responses.get(i);
+			if (response == null) {
+				Mongrel2Handler.sendError(pending.responder, HttpStatus.InternalServerError, pending.request);
+				continue;
+			}
+			try {
+				pending.responder.sendResponse(response, pending.request);
+			} catch (final Exception x) {
+				x.printStackTrace();
+			}
+		}
+
+	}
+
+	private void runBatcher() {
+
+		while (this.running.get() || !this.queue.isEmpty()) {
+
+			List<PendingRequest> batch = null;
+			try {
+				final PendingRequest first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch = new ArrayList<PendingRequest>(this.maxBatchSize);
+				batch.add(first);
+				if (this.running.get())
+					fill(batch);
+				else
+					this.queue.drainTo(batch, this.maxBatchSize - 1);
+			} catch (final InterruptedException x) {
+				// handle what has been collected
+			}
+
+			if (batch != null)
+				submit(batch);
+
+		}
+
+	}
+
+	private void submit(final List<PendingRequest> batch) {
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					handle(batch);
+				}
+			});
+		} catch (final RejectedExecutionException x) {
+			for (final PendingRequest pending : batch)
+				Mongrel2Handler.sendError(pending.responder, HttpStatus.ServiceUnavailable, pending.request);
+		}
+	}
+
+}
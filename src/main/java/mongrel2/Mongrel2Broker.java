@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Relays the requests of a {@link Mongrel2Handler} to remote workers and
+ * their responses back to Mongrel2, so CPU heavy handling may be spread over
+ * many machines without giving each one a connection to Mongrel2 or changing
+ * the Mongrel2 configuration. Workers connect to the broker with a
+ * {@link BrokerTransport} and announce how many requests they handle at once;
+ * each request goes to the worker with the lowest share of its capacity in
+ * use. While all workers are at capacity the broker stops reading from
+ * Mongrel2, which then queues requests or hands them to other handlers.
+ * 
+ * <pre>
+ * // on the broker
+ * Mongrel2Broker broker = new Mongrel2Broker(handler, &quot;tcp://*:9999&quot;);
+ * broker.start();
+ * 
+ * // on each worker
+ * Mongrel2Handler worker = new Mongrel2Handler.Builder(WORKER_ID).transport(new BrokerTransport(8))
+ * 		.recvAddr(&quot;tcp://broker:9999&quot;).sendAddr(&quot;tcp://broker:9999&quot;).build();
+ * new Mongrel2Dispatcher(worker, requestHandler, 8).start();
+ * </pre>
+ * 
+ * Requests are forwarded as received from Mongrel2, so they carry the sender,
+ * connection id, headers and body, and workers return fully encoded responses.
+ * A request counts against its worker's capacity until the worker reports it
+ * complete, which is not necessarily on its first response, or until the
+ * request timeout passes. Workers send a heartbeat every second, which also
+ * announces them again to a restarted broker; a worker not heard from for
+ * three heartbeats is dropped, and its requests are not answered.
+ * 
+ * The handler must use the {@link ZmqTransport} and must not be used directly
+ * while the broker is running.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class Mongrel2Broker {
+
+	private static class Forwarded {
+
+		final String key;
+		final long time;
+
+		Forwarded(final String key, final long time) {
+			this.key = key;
+			this.time = time;
+		}
+
+	}
+
+	private static class Worker {
+
+		int capacity;
+		long expiry;
+		final byte[] identity;
+		final List<Forwarded> outstanding; // oldest first, pipelined requests share a key
+
+		Worker(final byte[] identity, final int capacity) {
+			this.identity = identity;
+			this.capacity = capacity;
+			this.outstanding = new LinkedList<Forwarded>();
+		}
+
+		/**
+		 * Removes the oldest outstanding request with the given key.
+		 */
+		void complete(final String key) {
+			final Iterator<Forwarded> forwarded = this.outstanding.iterator();
+			while (forwarded.hasNext()) {
+				if (forwarded.next().key.equals(key)) {
+					forwarded.remove();
+					return;
+				}
+			}
+		}
+
+		boolean isAvailable() {
+			return this.outstanding.size() < this.capacity;
+		}
+
+		double load() {
+			return (double) this.outstanding.size() / this.capacity;
+		}
+
+	}
+
+	static final Charset ASCII = Charset.forName("US-ASCII");
+	static final byte[] CMD_BYE = "BYE".getBytes(ASCII);
+	static final byte[] CMD_DONE = "DONE".getBytes(ASCII);
+	static final byte[] CMD_HEARTBEAT = "HEARTBEAT".getBytes(ASCII);
+	static final byte[] CMD_READY = "READY".getBytes(ASCII);
+	static final byte[] CMD_REQUEST = "REQUEST".getBytes(ASCII);
+	static final byte[] CMD_RESPONSE = "RESPONSE".getBytes(ASCII);
+	static final long HEARTBEAT_INTERVAL = 1000;
+
+	private static final long DEFAULT_REQUEST_TIMEOUT = 60000;
+	private static final int HEARTBEAT_LIVENESS = 3;
+	private static final int MAX_RECEIVE_BATCH = 64;
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * Returns the capacity announced by a worker, at least one.
+	 * 
+	 * @throws NumberFormatException
+	 *             if the payload is not a number
+	 */
+	private static int parseCapacity(final byte[] payload) {
+		return (payload == null) ? 1 : Math.max(1, Integer.parseInt(new String(payload, ASCII)));
+	}
+
+	/**
+	 * Returns the sender and connection id at the start of a raw request,
+	 * which identify it in the DONE messages of workers. Requests pipelined
+	 * on one connection share a key and complete in order.
+	 */
+	static String requestKey(final byte[] raw) {
+		int spaces = 0;
+		for (int i = 0; i < raw.length; i++)
+			if (raw[i] == ' ' && ++spaces == 2)
+				return new String(raw, 0, i, ASCII);
+		return new String(raw, ASCII);
+	}
+
+	private Thread brokerThread = null;
+	private final Mongrel2Handler handler;
+	private long requestTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REQUEST_TIMEOUT);
+	private final AtomicBoolean running;
+	private final String workerAddr;
+	private final List<Worker> workers;
+
+	/**
+	 * @param handler
+	 *            the handler connected to Mongrel2, activated by the broker
+	 * @param workerAddr
+	 *            the address to which workers connect
+	 */
+	public Mongrel2Broker(final Mongrel2Handler handler, final String workerAddr) {
+		this.handler = handler;
+		this.workerAddr = workerAddr;
+		this.running = new AtomicBoolean();
+		this.workers = new ArrayList<Worker>();
+	}
+
+	/**
+	 * Returns if the broker thread is running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Sets the time after which a request no worker reported complete stops
+	 * counting against the worker's capacity. Defaults to one minute. Must be
+	 * called before the broker starts.
+	 * 
+	 * @param timeout
+	 *            the request timeout, zero or negative for none
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void setRequestTimeout(final long timeout, final TimeUnit unit) {
+		this.requestTimeout = unit.toNanos(Math.max(0, timeout));
+	}
+
+	/**
+	 * Start the broker thread, which activates the handler.
+	 */
+	public synchronized void start() {
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.brokerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runBroker();
+			}
+		}, "mongrel2-broker");
+		this.brokerThread.start();
+
+	}
+
+	/**
+	 * Stop the broker thread and deactivate the handler. Requests still being
+	 * handled by workers are not answered.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		this.brokerThread.join();
+		this.brokerThread = null;
+
+	}
+
+	/**
+	 * Drops workers which missed their heartbeats and requests which passed
+	 * the request timeout.
+	 */
+	private void expire(final long now) {
+		final Iterator<Worker> workers = this.workers.iterator();
+		while (workers.hasNext()) {
+			final Worker worker = workers.next();
+			if (worker.expiry - now <= 0) {
+				workers.remove();
+				continue;
+			}
+			if (this.requestTimeout == 0)
+				continue;
+			final Iterator<Forwarded> forwarded = worker.outstanding.iterator();
+			while (forwarded.hasNext() && now - forwarded.next().time >= this.requestTimeout)
+				forwarded.remove();
+		}
+	}
+
+	private Worker findWorker(final byte[] identity) {
+		for (final Worker worker : this.workers)
+			if (Arrays.equals(worker.identity, identity))
+				return worker;
+		return null;
+	}
+
+	/**
+	 * Returns the available worker with the lowest load, or null if all are
+	 * at capacity.
+	 */
+	private Worker findLeastLoaded() {
+		Worker best = null;
+		for (final Worker worker : this.workers)
+			if (worker.isAvailable() && (best == null || worker.load() < best.load()))
+				best = worker;
+		return best;
+	}
+
+	private void forwardRequests(final ZMQ.Socket router) {
+		for (int i = 0; i < MAX_RECEIVE_BATCH; i++) {
+			final Worker worker = findLeastLoaded();
+			if (worker == null)
+				return;
+			final byte[] raw = this.handler.receive(0);
+			if (raw == null)
+				return;
+			router.send(worker.identity, ZMQ.SNDMORE);
+			router.send(CMD_REQUEST, ZMQ.SNDMORE);
+			router.send(raw, 0);
+			worker.outstanding.add(new Forwarded(requestKey(raw), System.nanoTime()));
+		}
+	}
+
+	private void receiveFromWorkers(final ZMQ.Socket router) {
+
+		final long expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL * HEARTBEAT_LIVENESS);
+		byte[] identity;
+		while ((identity = router.recv(ZMQ.NOBLOCK)) != null) {
+
+			final byte[] command = router.hasReceiveMore() ? router.recv(0) : null;
+			Worker worker = findWorker(identity);
+			if (worker != null)
+				worker.expiry = expiry;
+
+			if (Arrays.equals(command, CMD_READY) || Arrays.equals(command, CMD_HEARTBEAT)) {
+				final byte[] payload = router.hasReceiveMore() ? router.recv(0) : null;
+				try {
+					final int capacity = parseCapacity(payload);
+					if (worker == null || Arrays.equals(command, CMD_READY)) {
+						// a new session, or a worker announcing itself again after a restart of the broker
+						this.workers.remove(worker);
+						worker = new Worker(identity, capacity);
+						worker.expiry = expiry;
+						this.workers.add(worker);
+					} else {
+						worker.capacity = capacity;
+					}
+				} catch (final NumberFormatException x) {
+					x.printStackTrace(); // ignore the malformed frame
+				}
+			} else if (Arrays.equals(command, CMD_RESPONSE) && router.hasReceiveMore()) {
+				try {
+					this.handler.send(router.recv(0));
+				} catch (final IOException x) {
+					x.printStackTrace();
+				}
+			} else if (Arrays.equals(command, CMD_DONE)) {
+				while (router.hasReceiveMore()) {
+					final String key = new String(router.recv(0), ASCII);
+					if (worker != null)
+						worker.complete(key);
+				}
+			} else if (Arrays.equals(command, CMD_BYE)) {
+				this.workers.remove(worker);
+			}
+
+			while (router.hasReceiveMore())
+				router.recv(0); // discard unknown frames
+
+		}
+
+	}
+
+	private void runBroker() {
+
+		this.handler.setActive(true);
+		ZMQ.Socket router = null;
+
+		try {
+
+			if (!(this.handler.getConnection() instanceof ZmqTransport.ZmqConnection))
+				throw new IllegalStateException("The broker requires a handler using the ZeroMQ transport.");
+			final ZmqTransport.ZmqConnection connection = (ZmqTransport.ZmqConnection) this.handler.getConnection();
+
+			router = connection.getContext().socket(ZMQ.ROUTER);
+			router.setLinger(0);
+			router.bind(this.workerAddr);
+
+			// only poll Mongrel2 while a worker can take more requests
+			final ZMQ.Poller both = connection.getContext().poller(2);
+			both.register(router, ZMQ.Poller.POLLIN);
+			both.register(connection.getRequestSocket(), ZMQ.Poller.POLLIN);
+			final ZMQ.Poller workersOnly = connection.getContext().poller(1);
+			workersOnly.register(router, ZMQ.Poller.POLLIN);
+
+			long nextExpiry = System.nanoTime();
+
+			while (this.running.get()) {
+
+				final long now = System.nanoTime();
+				if (now - nextExpiry >= 0) {
+					expire(now);
+					nextExpiry = now + TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL);
+				}
+
+				final ZMQ.Poller poller = (findLeastLoaded() != null) ? both : workersOnly;
+				if (poller.poll(POLL_INTERVAL) <= 0)
+					continue;
+
+				if (poller.pollin(0))
+					receiveFromWorkers(router);
+				if (poller == both && poller.pollin(1))
+					forwardRequests(router);
+
+			}
+
+		} finally {
+			if (router != null)
+				router.close();
+			this.workers.clear();
+			this.handler.setActive(false);
+			this.running.set(false);
+		}
+
+	}
+
+}
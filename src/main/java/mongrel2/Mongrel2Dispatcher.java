@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a {@link Mongrel2Handler} on a single internal I/O thread which owns
+ * both ZeroMQ sockets. Incoming requests are parsed on the I/O thread and
+ * handed to a pool of worker threads; responses sent from any thread are
+ * encoded by the caller, queued and published by the I/O thread. This allows
+ * one handler identity to be served by many threads without sharing a socket.
+ * 
+ * <pre>
+ * Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, requestHandler, 8);
+ * dispatcher.start();
+ * ...
+ * dispatcher.stop();
+ * </pre>
+ * 
+ * The handler must not be used directly while the dispatcher is running.
+ * 
+ * For a rolling restart, call {@link #drain(long, TimeUnit)} instead of
+ * {@link #stop()}: the dispatcher stops pulling requests, waits for the ones
+ * in flight to be answered, and then closes the handler while the last
+ * responses are delivered. Requests already queued by ZeroMQ in this process
+ * are answered with 503 Service Unavailable before the handler closes, so a
+ * small receive high-water mark leaves more of them to the other handler
+ * processes.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class Mongrel2Dispatcher implements Responder {
+
+	private static final Response BAD_REQUEST = Mongrel2Handler.encodeError(HttpStatus.BadRequest);
+	private static final Comparator<Request> BY_DEADLINE = new Comparator<Request>() {
+		@Override
+		public int compare(final Request r1, final Request r2) {
+			final long d = r1.getDeadline() - r2.getDeadline();
+			return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+		}
+	};
+	private static final long CLOSE_LINGER = 1000;
+	private static final long DEFAULT_POLL_INTERVAL = 1;
+	private static final Response GATEWAY_TIMEOUT = Mongrel2Handler.encodeError(HttpStatus.GatewayTimeout);
+	private static final int MAX_RECEIVE_BATCH = 64;
+	private static final long MAX_SWEEP_TIME = 100;
+	private static final String NO_ROUTE = "";
+	private static final Response SERVICE_UNAVAILABLE = Mongrel2Handler.encodeError(HttpStatus.ServiceUnavailable);
+
+	private static RequestExecutor adapt(final Executor executor) {
+		return new RequestExecutor() {
+			@Override
+			public void execute(final HttpRequest request, final Runnable task) {
+				executor.execute(task);
+			}
+		};
+	}
+
+	private final PriorityQueue<Request> deadlines;
+	private volatile long drainDeadline = 0;
+	private volatile boolean draining = false;
+	private final Mongrel2Handler handler;
+	private final Object idle;
+	private final AtomicInteger inFlight;
+	private Thread ioThread = null;
+	private volatile AdaptiveConcurrencyLimiter limiter = null;
+	private final BlockingQueue<byte[]> outbound;
+	private final ExecutorService ownedWorkers;
+	private long pollInterval = DEFAULT_POLL_INTERVAL;
+	private boolean quiesced = false; // guarded by idle
+	private final RequestHandler requestHandler;
+	private final AtomicBoolean running;
+	private final Map<String, Long> timeouts;
+	private final RequestExecutor workers;
+
+	/**
+	 * Construct a dispatcher which runs requests on the given executor. The
+	 * executor is not shut down when the dispatcher stops.
+	 * 
+	 * @param handler
+	 *            the handler connected to Mongrel2
+	 * @param requestHandler
+	 *            the application callback
+	 * @param workers
+	 *            the executor on which to run the request handler
+	 */
+	public Mongrel2Dispatcher(final Mongrel2Handler handler, final RequestHandler requestHandler,
+			final Executor workers) {
+		this(handler, requestHandler, adapt(workers), null);
+	}
+
+	/**
+	 * Construct a dispatcher with its own fixed pool of worker threads.
+	 * 
+	 * @param handler
+	 *            the handler connected to Mongrel2
+	 * @param requestHandler
+	 *            the application callback
+	 * @param workerThreads
+	 *            the number of worker threads
+	 */
+	public Mongrel2Dispatcher(final Mongrel2Handler handler, final RequestHandler requestHandler,
+			final int workerThreads) {
+		this(handler, requestHandler, Executors.newFixedThreadPool(workerThreads));
+	}
+
+	/**
+	 * Construct a dispatcher which chooses where to run each request, such as
+	 * {@link PriorityLanes}. The executor is not shut down when the dispatcher
+	 * stops.
+	 * 
+	 * @param handler
+	 *            the handler connected to Mongrel2
+	 * @param requestHandler
+	 *            the application callback
+	 * @param workers
+	 *            runs the request handler for each request
+	 */
+	public Mongrel2Dispatcher(final Mongrel2Handler handler, final RequestHandler requestHandler,
+			final RequestExecutor workers) {
+		this(handler, requestHandler, workers, null);
+	}
+
+	private Mongrel2Dispatcher(final Mongrel2Handler handler, final RequestHandler requestHandler,
+			final ExecutorService ownedWorkers) {
+		this(handler, requestHandler, adapt(ownedWorkers), ownedWorkers);
+	}
+
+	private Mongrel2Dispatcher(final Mongrel2Handler handler, final RequestHandler requestHandler,
+			final RequestExecutor workers, final ExecutorService ownedWorkers) {
+		this.handler = handler;
+		this.requestHandler = requestHandler;
+		this.workers = workers;
+		this.ownedWorkers = ownedWorkers;
+		this.outbound = new LinkedBlockingQueue<byte[]>();
+		this.running = new AtomicBoolean();
+		this.deadlines = new PriorityQueue<Request>(MAX_RECEIVE_BATCH, BY_DEADLINE);
+		this.timeouts = new ConcurrentHashMap<String, Long>();
+		this.idle = new Object();
+		this.inFlight = new AtomicInteger();
+	}
+
+	/**
+	 * Stop pulling new requests, wait for the requests in flight to be
+	 * answered or to expire, then stop the I/O thread like {@link #stop()}.
+	 * Requests received but not yet pulled are answered with 503 Service
+	 * Unavailable. Responses not yet delivered to Mongrel2 are kept until the
+	 * timeout passes.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait for the requests in flight
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if all requests were answered, false if the timeout passed
+	 *         first
+	 * @throws InterruptedException
+	 */
+	public boolean drain(final long timeout, final TimeUnit unit) throws InterruptedException {
+
+		if (!isRunning())
+			return this.inFlight.get() == 0;
+
+		final long deadline = System.nanoTime() + unit.toNanos(Math.max(0, timeout));
+		this.drainDeadline = deadline;
+		this.draining = true;
+
+		boolean drained = false;
+		synchronized (this.idle) {
+			long remaining = deadline - System.nanoTime();
+			while (!(drained = this.quiesced && this.inFlight.get() == 0) && remaining > 0) {
+				TimeUnit.NANOSECONDS.timedWait(this.idle, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+		}
+
+		stop();
+		return drained;
+
+	}
+
+	/**
+	 * Returns the number of requests dispatched but neither answered nor
+	 * expired.
+	 * 
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * Returns if the I/O thread is running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Convenience method for the sendResponse(Response, Request[]) method.
+	 * 
+	 * @param response
+	 *            the response to send
+	 * @param recipients
+	 *            one or more requests to receive the response.
+	 * @throws IOException
+	 */
+	public void sendResponse(final Response response, final Collection<Request> recipients) throws IOException {
+		final Request[] r = new Request[recipients.size()];
+		recipients.toArray(r);
+		sendResponse(response, r);
+	}
+
+	/**
+	 * Queue a response to one or more requests. The response is encoded on the
+	 * calling thread and published by the I/O thread. May be called from any
+	 * thread. Cancelled recipients are skipped.
+	 * 
+	 * @param response
+	 *            the response to send
+	 * @param recipients
+	 *            one or more requests to receive the response.
+	 * @throws IOException
+	 */
+	@Override
+	public void sendResponse(final Response response, final Request... recipients) throws IOException {
+
+		if (recipients == null || recipients.length == 0)
+			throw new IllegalArgumentException();
+
+		int completed = 0;
+		List<Request> open = null;
+		for (int i = 0; i < recipients.length; i++) {
+			if (recipients[i].markAnswered()) {
+				recipients[i].releaseLimiter();
+				completed++;
+			}
+			if (recipients[i].answer()) {
+				if (open != null)
+					open.add(recipients[i]);
+			} else if (open == null) {
+				open = new ArrayList<Request>(recipients.length);
+				for (int n = 0; n < i; n++)
+					open.add(recipients[n]);
+			}
+		}
+
+		try {
+			if (open == null)
+				send(response, recipients);
+			else if (!open.isEmpty())
+				send(response, open.toArray(new Request[open.size()]));
+		} finally {
+			// only once queued, so a drain does not stop before publishing it
+			for (int i = 0; i < completed; i++)
+				completed();
+		}
+
+	}
+
+	/**
+	 * Limits the number of requests in flight. Requests received while the
+	 * limit is reached are answered at once with a pre-encoded 503 Service
+	 * Unavailable response instead of being queued for a worker. A request is
+	 * in flight from its receipt until it is answered or expires, even if the
+	 * request handler returns before, as {@link MicroBatchingHandler} does.
+	 * 
+	 * @param limiter
+	 *            the limiter, or null to admit all requests
+	 */
+	public void setConcurrencyLimiter(final AdaptiveConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Sets the maximum time the I/O thread waits for a request before checking
+	 * the queue of outgoing responses. This bounds the additional latency of a
+	 * response sent while no requests are arriving. Defaults to one
+	 * millisecond.
+	 * 
+	 * @param interval
+	 * @param unit
+	 */
+	public void setPollInterval(final long interval, final TimeUnit unit) {
+		this.pollInterval = Math.max(1, unit.toMillis(interval));
+	}
+
+	/**
+	 * Sets the time budget of every request not matched by a route specific
+	 * timeout, starting when the request is received. When it passes the
+	 * request is answered with 504 Gateway Timeout and cancelled: any later
+	 * response to it is discarded and request handlers may stop working on it
+	 * by checking {@link Request#isCancelled()}.
+	 * 
+	 * @param timeout
+	 *            the time budget, zero or negative for none
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void setTimeout(final long timeout, final TimeUnit unit) {
+		setTimeout(null, timeout, unit);
+	}
+
+	/**
+	 * Sets the time budget of requests of a Mongrel2 route, as given in the
+	 * routes of the Mongrel2 host configuration and received in the PATTERN
+	 * header. See {@link #setTimeout(long, TimeUnit)}.
+	 * 
+	 * @param route
+	 *            the Mongrel2 route, or null for all unmatched routes
+	 * @param timeout
+	 *            the time budget, zero or negative for none
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void setTimeout(final String route, final long timeout, final TimeUnit unit) {
+		this.timeouts.put((route == null) ? NO_ROUTE : route, unit.toNanos(Math.max(0, timeout)));
+	}
+
+	/**
+	 * Start the I/O thread, which activates the handler.
+	 */
+	public void start() {
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.draining = false;
+		synchronized (this.idle) {
+			this.quiesced = false;
+		}
+
+		this.ioThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runIoLoop();
+			}
+		}, "mongrel2-dispatcher");
+		this.ioThread.start();
+
+	}
+
+	/**
+	 * Stop the I/O thread, publishing any responses already queued, and
+	 * deactivate the handler, keeping undelivered responses for up to a
+	 * second. A worker pool created by the dispatcher is shut
+	 * down.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		this.ioThread.join();
+		this.ioThread = null;
+
+		if (this.ownedWorkers != null)
+			this.ownedWorkers.shutdown();
+
+	}
+
+	/**
+	 * Counts a dispatched request as answered or expired.
+	 */
+	private void completed() {
+		if (this.inFlight.decrementAndGet() == 0) {
+			synchronized (this.idle) {
+				this.idle.notifyAll();
+			}
+		}
+	}
+
+	private void dispatch(final byte[] raw) {
+
+		final HttpRequest request = new HttpRequest();
+		try {
+			this.handler.parse(request, raw);
+		} catch (final RuntimeException x) {
+			x.printStackTrace();
+			return;
+		}
+
+		try {
+			request.decodeHeaders();
+		} catch (final RuntimeException x) {
+			x.printStackTrace();
+			reject(request, BAD_REQUEST);
+			return;
+		}
+
+		request.open();
+		this.inFlight.incrementAndGet();
+		setDeadline(request);
+
+		final AdaptiveConcurrencyLimiter limiter = this.limiter;
+		if (limiter != null) {
+			if (!limiter.tryAcquire()) {
+				reject(request, SERVICE_UNAVAILABLE);
+				return;
+			}
+			request.setLimiter(limiter); // released with the answer
+		}
+
+		try {
+			this.workers.execute(request, new Runnable() {
+				@Override
+				public void run() {
+					handle(request);
+				}
+			});
+		} catch (final RejectedExecutionException x) {
+			unlimit(request, limiter);
+			reject(request, SERVICE_UNAVAILABLE);
+		} catch (final RuntimeException x) {
+			// such as a key function failing on a malformed request
+			x.printStackTrace();
+			unlimit(request, limiter);
+			reject(request, BAD_REQUEST);
+		}
+
+	}
+
+	/**
+	 * Answers and cancels all requests whose deadline has passed, unless they
+	 * have been answered already. Answered requests at the head of the queue
+	 * are dropped early, so they do not hold on to their raw messages.
+	 */
+	private void expire() {
+		final long now = System.nanoTime();
+		Request request;
+		while ((request = this.deadlines.peek()) != null && (!request.isOpen() || request.getDeadline() - now <= 0)) {
+			this.deadlines.poll();
+			if (request.cancel()) {
+				sendExpired(request);
+				request.releaseLimiter();
+				completed();
+			}
+		}
+	}
+
+	private void flush() {
+		byte[] message;
+		while ((message = this.outbound.poll()) != null) {
+			try {
+				this.handler.send(message);
+			} catch (final IOException x) {
+				x.printStackTrace();
+			}
+		}
+	}
+
+	private void handle(final HttpRequest request) {
+		if (request.isCancelled())
+			return; // expired while waiting for a worker
+		try {
+			this.requestHandler.handleRequest(request, this);
+		} catch (final Exception x) {
+			x.printStackTrace();
+			Mongrel2Handler.sendError(this, HttpStatus.InternalServerError, request);
+		}
+	}
+
+	private void reject(final HttpRequest request, final Response response) {
+		try {
+			sendResponse(response, request);
+		} catch (final IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	/**
+	 * Answers the requests ZeroMQ has already queued in this process with 503
+	 * Service Unavailable, so none is lost when a draining handler closes.
+	 * Requests keep arriving while the queue empties, so the sweep is bounded
+	 * in time.
+	 */
+	private void rejectQueued(final byte[][] batch) {
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_SWEEP_TIME);
+		int count;
+		while ((count = this.handler.receive(batch, 0)) > 0) {
+			for (int i = 0; i < count; i++) {
+				final HttpRequest request = new HttpRequest();
+				try {
+					this.handler.parse(request, batch[i]);
+					reject(request, SERVICE_UNAVAILABLE);
+				} catch (final RuntimeException x) {
+					x.printStackTrace();
+				}
+				batch[i] = null;
+			}
+			flush();
+			if (System.nanoTime() - end >= 0)
+				break;
+		}
+	}
+
+	private void send(final Response response, final Request[] recipients) throws IOException {
+		this.outbound.add(Mongrel2Handler.encodeResponse(response, recipients));
+	}
+
+	private void sendExpired(final Request request) {
+		try {
+			send(GATEWAY_TIMEOUT, new Request[] { request });
+		} catch (final IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private void setDeadline(final HttpRequest request) {
+		if (this.timeouts.isEmpty())
+			return;
+		final String route = request.getHeader(KnownHeaders.PATTERN);
+		Long timeout = (route == null) ? null : this.timeouts.get(route);
+		if (timeout == null)
+			timeout = this.timeouts.get(NO_ROUTE);
+		if (timeout == null || timeout.longValue() == 0)
+			return;
+		request.setDeadline(System.nanoTime() + timeout.longValue());
+		this.deadlines.add(request);
+	}
+
+	private void runIoLoop() {
+
+		final byte[][] batch = new byte[MAX_RECEIVE_BATCH][];
+
+		this.handler.setActive(true);
+
+		try {
+
+			while (this.running.get()) {
+
+				expire();
+				flush();
+
+				if (this.draining) {
+					// leave new requests to the other handlers and wait for workers
+					synchronized (this.idle) {
+						if (!this.quiesced) {
+							this.quiesced = true;
+							this.idle.notifyAll();
+						}
+						this.idle.wait(this.pollInterval);
+					}
+					continue;
+				}
+
+				final int count = this.handler.receive(batch, this.pollInterval);
+				for (int i = 0; i < count; i++) {
+					dispatch(batch[i]);
+					batch[i] = null;
+				}
+
+			}
+
+			if (this.draining)
+				rejectQueued(batch);
+			flush();
+
+		} catch (final InterruptedException x) {
+			flush();
+		} finally {
+			this.deadlines.clear();
+			long linger = TimeUnit.MILLISECONDS.toNanos(CLOSE_LINGER);
+			if (this.draining)
+				linger = Math.max(linger, this.drainDeadline - System.nanoTime());
+			this.handler.deactivate(linger, TimeUnit.NANOSECONDS);
+		}
+
+	}
+
+	/**
+	 * Releases the limiter of a request which never reached a worker, without
+	 * a latency sample.
+	 */
+	private void unlimit(final HttpRequest request, final AdaptiveConcurrencyLimiter limiter) {
+		if (limiter != null) {
+			request.setLimiter(null);
+			limiter.release();
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Services many {@link Mongrel2Handler}s from a single thread. The request
+ * sockets of all registered handlers are multiplexed with a ZeroMQ poller and
+ * each request is passed to the callback registered for its handler and,
+ * optionally, its Mongrel2 route.
+ * 
+ * <pre>
+ * Mongrel2EventLoop loop = new Mongrel2EventLoop();
+ * loop.register(webHandler, &quot;/&quot;, pageCallback);
+ * loop.register(chatHandler, &quot;@mychat&quot;, chatCallback);
+ * loop.start();
+ * </pre>
+ * 
+ * Callbacks run on the event loop thread and must send their responses before
+ * returning, using the given responder; they should never block. All handlers
+ * must use the {@link ZmqTransport}.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class Mongrel2EventLoop {
+
+	private static final long DEFAULT_POLL_INTERVAL = 100;
+	private static final int MAX_RECEIVE_BATCH = 64;
+
+	private static class Registration {
+
+		RequestHandler defaultCallback = null;
+		final Mongrel2Handler handler;
+		final Map<String, RequestHandler> routes;
+
+		Registration(final Mongrel2Handler handler) {
+			this.handler = handler;
+			this.routes = new HashMap<String, RequestHandler>();
+		}
+
+		RequestHandler findCallback(final HttpRequest request) {
+			final String route = request.getHeader(KnownHeaders.PATTERN);
+			if (route != null && this.routes.containsKey(route))
+				return this.routes.get(route);
+			return this.defaultCallback;
+		}
+
+	}
+
+	private Thread loopThread = null;
+	private long pollInterval = DEFAULT_POLL_INTERVAL;
+	private final List<Registration> registrations;
+	private final AtomicBoolean running;
+
+	public Mongrel2EventLoop() {
+		this.registrations = new ArrayList<Registration>();
+		this.running = new AtomicBoolean();
+	}
+
+	/**
+	 * Returns if the event loop thread is running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Register the callback for all requests of a handler not matched by a
+	 * route specific callback.
+	 * 
+	 * @param handler
+	 *            an inactive handler, activated by the event loop
+	 * @param callback
+	 *            the callback receiving requests
+	 */
+	public void register(final Mongrel2Handler handler, final RequestHandler callback) {
+		register(handler, null, callback);
+	}
+
+	/**
+	 * Register the callback for the requests of a handler matching a Mongrel2
+	 * route, as given in the routes of the Mongrel2 host configuration and
+	 * received in the PATTERN header.
+	 * 
+	 * @param handler
+	 *            an inactive handler, activated by the event loop
+	 * @param route
+	 *            the Mongrel2 route, or null for all unmatched routes
+	 * @param callback
+	 *            the callback receiving requests
+	 */
+	public synchronized void register(final Mongrel2Handler handler, final String route,
+			final RequestHandler callback) {
+
+		if (isRunning())
+			throw new IllegalStateException("Cannot register handlers while running.");
+
+		Registration registration = null;
+		for (final Registration r : this.registrations)
+			if (r.handler == handler)
+				registration = r;
+
+		if (registration == null) {
+			registration = new Registration(handler);
+			this.registrations.add(registration);
+		}
+
+		if (route == null)
+			registration.defaultCallback = callback;
+		else
+			registration.routes.put(route, callback);
+
+	}
+
+	/**
+	 * Sets the maximum time the event loop waits for requests before checking
+	 * if it has been stopped. Defaults to 100 milliseconds.
+	 * 
+	 * @param interval
+	 * @param unit
+	 */
+	public void setPollInterval(final long interval, final TimeUnit unit) {
+		this.pollInterval = Math.max(1, unit.toMillis(interval));
+	}
+
+	/**
+	 * Start the event loop thread, which activates all registered handlers.
+	 */
+	public synchronized void start() {
+
+		if (this.registrations.isEmpty())
+			throw new IllegalStateException("No handlers registered.");
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.loopThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runLoop();
+			}
+		}, "mongrel2-event-loop");
+		this.loopThread.start();
+
+	}
+
+	/**
+	 * Stop the event loop thread and deactivate all registered handlers.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		this.loopThread.join();
+		this.loopThread = null;
+
+	}
+
+	private void dispatch(final Registration registration, final byte[] raw) {
+
+		final HttpRequest request = new HttpRequest();
+
+		try {
+			registration.handler.parse(request, raw);
+		} catch (final RuntimeException x) {
+			x.printStackTrace();
+			return;
+		}
+
+		try {
+			request.decodeHeaders();
+		} catch (final RuntimeException x) {
+			x.printStackTrace();
+			Mongrel2Handler.sendError(registration.handler, HttpStatus.BadRequest, request);
+			return;
+		}
+
+		final RequestHandler callback = registration.findCallback(request);
+
+		try {
+			if (callback == null)
+				throw new IllegalStateException("No callback for route: " + request.getHeader(KnownHeaders.PATTERN));
+			callback.handleRequest(request, registration.handler);
+		} catch (final Exception x) {
+			x.printStackTrace();
+			Mongrel2Handler.sendError(registration.handler, HttpStatus.InternalServerError, request);
+		}
+
+	}
+
+	private void runLoop() {
+
+		final Registration[] regs = this.registrations.toArray(new Registration[this.registrations.size()]);
+		final byte[][] batch = new byte[MAX_RECEIVE_BATCH][];
+
+		for (final Registration r : regs)
+			r.handler.setActive(true);
+
+		try {
+
+			final ZmqTransport.ZmqConnection[] connections = new ZmqTransport.ZmqConnection[regs.length];
+			for (int i = 0; i < regs.length; i++) {
+				if (!(regs[i].handler.getConnection() instanceof ZmqTransport.ZmqConnection))
+					throw new IllegalStateException("The event loop requires handlers using the ZeroMQ transport.");
+				connections[i] = (ZmqTransport.ZmqConnection) regs[i].handler.getConnection();
+			}
+
+			final ZMQ.Poller poller = connections[0].getContext().poller(regs.length);
+			for (final ZmqTransport.ZmqConnection c : connections)
+				poller.register(c.getRequestSocket(), ZMQ.Poller.POLLIN);
+
+			while (this.running.get()) {
+
+				if (poller.poll(this.pollInterval) <= 0)
+					continue;
+
+				for (int i = 0; i < regs.length; i++) {
+					if (!poller.pollin(i))
+						continue;
+					final int count = regs[i].handler.receive(batch, 0);
+					for (int n = 0; n < count; n++) {
+						dispatch(regs[i], batch[n]);
+						batch[n] = null;
+					}
+				}
+
+			}
+
+		} finally {
+			for (final Registration r : regs)
+				r.handler.setActive(false);
+			this.running.set(false);
+		}
+
+	}
+
+}
@@ -19,7 +19,10 @@ package mongrel2;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.zeromq.ZMQ;
@@ -27,14 +30,229 @@ import org.zeromq.ZMQ;
 /**
  * A Handler for the Mongrel 2 web server. The handler connects to Mongrel2's
  * ZeroMQ socket to read requests and allows responses to be returned via the
- * separate publishing socket.
+ * separate publishing socket. Other transports may be plugged in with
+ * {@link Builder#transport(Transport)}.
  * 
  * @author Karl Ostendorf
  * 
  */
-public class Mongrel2Handler {
+public class Mongrel2Handler implements Responder {
+
+	/**
+	 * Builds a handler with tuned socket options. Options not set keep the
+	 * transport's defaults, except linger, which defaults to zero.
+	 * 
+	 * <pre>
+	 * Mongrel2Handler handler = new Mongrel2Handler.Builder(SENDER_ID)
+	 * 		.recvIpc(&quot;/var/run/mongrel2/requests&quot;)
+	 * 		.sendIpc(&quot;/var/run/mongrel2/responses&quot;)
+	 * 		.receiveHighWaterMark(1000)
+	 * 		.build();
+	 * </pre>
+	 * 
+	 */
+	public static class Builder {
+
+		private ZMQ.Context context = null;
+		private HeaderCache headerCache = null;
+		private int ioThreads = 1;
+		private long linger = 0;
+		private long receiveBufferSize = -1;
+		private long receiveHighWaterMark = -1;
+		private long reconnectInterval = -1;
+		private long reconnectIntervalMax = -1;
+		private String recvAddr = null;
+		private long sendBufferSize = -1;
+		private String sendAddr = null;
+		private final String senderId;
+		private long sendHighWaterMark = -1;
+		private final List<String[]> servers = new ArrayList<String[]>();
+		private Transport transport = null;
+
+		/**
+		 * @param senderId
+		 *            A unique identifier for the handler.
+		 */
+		public Builder(final String senderId) {
+			this.senderId = senderId;
+		}
+
+		public Mongrel2Handler build() {
+			if (this.senderId == null)
+				throw new IllegalStateException("Sender id is required.");
+			if (this.servers.isEmpty() && (this.recvAddr == null || this.sendAddr == null))
+				throw new IllegalStateException("Receive and send addresses are required.");
+			if (!this.servers.isEmpty() && (this.recvAddr != null || this.sendAddr != null))
+				throw new IllegalStateException("Use either servers or receive and send addresses.");
+			if (this.transport != null && this.context != null)
+				throw new IllegalStateException("Use either a transport or a ZeroMQ context.");
+			return new Mongrel2Handler(this);
+		}
+
+		/**
+		 * Use a ZeroMQ context shared with other handlers. The context is not
+		 * terminated by the handler.
+		 */
+		public Builder context(final ZMQ.Context context) {
+			this.context = context;
+			return this;
+		}
+
+		/**
+		 * Share parsed headers between requests with the same header block,
+		 * apart from the per request path and query.
+		 */
+		public Builder headerCache(final HeaderCache headerCache) {
+			this.headerCache = headerCache;
+			return this;
+		}
+
+		/**
+		 * The number of I/O threads of the handler's private context. Ignored
+		 * if a shared context or another transport is given.
+		 */
+		public Builder ioThreads(final int ioThreads) {
+			if (ioThreads < 1)
+				throw new IllegalArgumentException();
+			this.ioThreads = ioThreads;
+			return this;
+		}
+
+		/**
+		 * Milliseconds unsent responses are kept after deactivation, -1 to
+		 * keep them until sent. Defaults to zero.
+		 */
+		public Builder linger(final long linger) {
+			this.linger = linger;
+			return this;
+		}
+
+		/**
+		 * Kernel receive buffer size, in bytes, of the request socket.
+		 */
+		public Builder receiveBufferSize(final long bytes) {
+			this.receiveBufferSize = bytes;
+			return this;
+		}
+
+		/**
+		 * Maximum number of requests queued in the handler before Mongrel2
+		 * stops sending it more.
+		 */
+		public Builder receiveHighWaterMark(final long messages) {
+			this.receiveHighWaterMark = messages;
+			return this;
+		}
+
+		/**
+		 * Milliseconds between attempts to reconnect to Mongrel2.
+		 */
+		public Builder reconnectInterval(final long millis) {
+			this.reconnectInterval = millis;
+			return this;
+		}
+
+		/**
+		 * Maximum milliseconds between reconnection attempts, backing off
+		 * exponentially from the reconnect interval.
+		 */
+		public Builder reconnectIntervalMax(final long millis) {
+			this.reconnectIntervalMax = millis;
+			return this;
+		}
+
+		/**
+		 * The socket on which the handler will receive messages. The same as
+		 * the send_spec in the mongrel2 handler configuration.
+		 */
+		public Builder recvAddr(final String recvAddr) {
+			this.recvAddr = recvAddr;
+			return this;
+		}
+
+		/**
+		 * Receive messages over a unix domain socket, for handlers running on
+		 * the same host as Mongrel2.
+		 * 
+		 * @param path
+		 *            the path of the socket as in send_spec='ipc://path'
+		 */
+		public Builder recvIpc(final String path) {
+			return recvAddr(IPC_PREFIX + path);
+		}
+
+		/**
+		 * Kernel send buffer size, in bytes, of the response socket.
+		 */
+		public Builder sendBufferSize(final long bytes) {
+			this.sendBufferSize = bytes;
+			return this;
+		}
+
+		/**
+		 * The socket on which the handler will publish messages. The same as
+		 * the recv_spec in the mongrel2 handler configuration.
+		 */
+		public Builder sendAddr(final String sendAddr) {
+			this.sendAddr = sendAddr;
+			return this;
+		}
+
+		/**
+		 * Maximum number of responses queued in the handler before further
+		 * responses are dropped.
+		 */
+		public Builder sendHighWaterMark(final long messages) {
+			this.sendHighWaterMark = messages;
+			return this;
+		}
+
+		/**
+		 * Connect to one of several Mongrel2 servers. Requests are received
+		 * from all servers and each response is published only to the server
+		 * whose uuid matches the sender address of its requests.
+		 * 
+		 * @param uuid
+		 *            the uuid of the Mongrel2 server, the same as the
+		 *            send_ident in the mongrel2 handler configuration
+		 * @param recvAddr
+		 *            the same as the send_spec in the mongrel2 handler
+		 *            configuration
+		 * @param sendAddr
+		 *            the same as the recv_spec in the mongrel2 handler
+		 *            configuration
+		 */
+		public Builder server(final String uuid, final String recvAddr, final String sendAddr) {
+			if (uuid == null || recvAddr == null || sendAddr == null)
+				throw new IllegalArgumentException();
+			this.servers.add(new String[] { uuid, recvAddr, sendAddr });
+			return this;
+		}
+
+		/**
+		 * Publish messages over a unix domain socket, for handlers running on
+		 * the same host as Mongrel2.
+		 * 
+		 * @param path
+		 *            the path of the socket as in recv_spec='ipc://path'
+		 */
+		public Builder sendIpc(final String path) {
+			return sendAddr(IPC_PREFIX + path);
+		}
+
+		/**
+		 * Carry messages over the given transport instead of a ZeroMQ
+		 * transport created from the context and I/O threads settings.
+		 */
+		public Builder transport(final Transport transport) {
+			this.transport = transport;
+			return this;
+		}
+
+	}
 
 	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final String IPC_PREFIX = "ipc://";
 	private static final char SPACE_CHAR = ' ';
 
 	static String formatNetString(final Request[] requests) {
@@ -62,14 +280,99 @@ public class Mongrel2Handler {
 
 	}
 
-	private final AtomicBoolean active;
-	private ZMQ.Context context = null;
-	private final String recvAddr;
-	private ZMQ.Socket requests = null;
-	private ZMQ.Socket responses = null;
-	private final String sendAddr;
+	/**
+	 * Transforms the response and wraps its payload in the Mongrel2 envelope
+	 * addressed to the given recipients.
+	 */
+	static byte[] encodeResponse(final Response response, final Request... recipients) throws IOException {
 
+		if (recipients == null || recipients.length == 0)
+			throw new IllegalArgumentException();
+
+		// use sender addr of first request
+		final String senderAddr = recipients[0].getSenderAddr();
+		final String recipientNetString = formatNetString(recipients);
+
+		// construct mongrel2 response
+		final StringBuilder responseStr = new StringBuilder();
+		responseStr.append(senderAddr);
+		responseStr.append(SPACE_CHAR);
+		responseStr.append(recipientNetString);
+		responseStr.append(SPACE_CHAR);
+
+		response.transform();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(responseStr.toString().getBytes(ASCII));
+		out.write(response.getPayload());
+		out.close();
+
+		return out.toByteArray();
+
+	}
+
+	/**
+	 * Returns a plain text error response already transformed into its
+	 * payload, which may be sent to any number of requests without
+	 * transforming it again.
+	 */
+	static Response encodeError(final HttpStatus status) {
+		final BareHttpResponse rsp = new BareHttpResponse();
+		rsp.setStatus(status);
+		rsp.setContent(status.msg + "\n");
+		rsp.setIntHeader(HttpHeader.CONTENT_LENGTH, rsp.getContent().length);
+		rsp.setHeader("Cache-Control", "no-cache");
+		rsp.setHeader("Connection", "keep-alive");
+		try {
+			rsp.transform();
+		} catch (final IOException x) {
+			throw new IllegalStateException(x);
+		}
+		final Response encoded = new Response();
+		encoded.setPayload(rsp.getPayload());
+		return encoded;
+	}
+
+	/**
+	 * Answers the recipients with a plain text error response, reporting but
+	 * otherwise ignoring any failure to send it.
+	 */
+	static void sendError(final Responder responder, final HttpStatus status, final Request... recipients) {
+		final HttpResponse rsp = new HttpResponse();
+		rsp.setStatus(status);
+		rsp.sendError(status);
+		try {
+			responder.sendResponse(rsp, recipients);
+		} catch (final Exception x) {
+			x.printStackTrace();
+		}
+	}
+
+	private static int findSpace(final byte[] message) {
+		for (int i = 0; i < message.length; i++)
+			if (message[i] == SPACE_CHAR)
+				return i;
+		return -1;
+	}
+
+	private static boolean startsWithServerId(final byte[] message, final byte[] serverId) {
+		if (message.length <= serverId.length || message[serverId.length] != SPACE_CHAR)
+			return false;
+		for (int i = 0; i < serverId.length; i++)
+			if (message[i] != serverId[i])
+				return false;
+		return true;
+	}
+
+	private final AtomicBoolean active;
+	private Transport.Connection connection = null;
+	private final HeaderCache headerCache;
+	private final Transport.Options options;
+	private final String[] recvAddrs;
+	private final String[] sendAddrs;
 	private final String senderId;
+	private final byte[][] serverIds;
+	private final Transport transport;
 
 	/**
 	 * Construct a new handler to communicate with Mongrel2.
@@ -84,12 +387,89 @@ public class Mongrel2Handler {
 	 *            same as the recv_spec in the mongrel2 handler configuration.
 	 */
 	public Mongrel2Handler(final String senderId, final String recvAddr, final String sendAddr) {
-		this.senderId = senderId;
-		this.recvAddr = recvAddr;
-		this.sendAddr = sendAddr;
+		this(null, senderId, recvAddr, sendAddr);
+	}
+
+	/**
+	 * Construct a new handler to communicate with Mongrel2 using a ZeroMQ
+	 * context shared with other handlers. The context is not terminated by the
+	 * handler.
+	 * 
+	 * @param context
+	 *            The shared ZeroMQ context, or null to create a private context
+	 *            on activation.
+	 * @param senderId
+	 *            A unique identifier for this handler.
+	 * @param recvAddr
+	 *            The socket on which the handler will receive messages. The
+	 *            same as the send_spec in the mongrel2 handler configuration.
+	 * @param sendAddr
+	 *            The socket on which the handler will publish messages. The
+	 *            same as the recv_spec in the mongrel2 handler configuration.
+	 */
+	public Mongrel2Handler(final ZMQ.Context context, final String senderId, final String recvAddr,
+			final String sendAddr) {
+		this(new Builder(senderId).context(context).recvAddr(recvAddr).sendAddr(sendAddr));
+	}
+
+	private Mongrel2Handler(final Builder builder) {
+		if (builder.transport != null)
+			this.transport = builder.transport;
+		else if (builder.context != null)
+			this.transport = new ZmqTransport(builder.context);
+		else
+			this.transport = new ZmqTransport(builder.ioThreads);
+		this.senderId = builder.senderId;
+		this.headerCache = builder.headerCache;
+		if (builder.servers.isEmpty()) {
+			this.serverIds = new byte[][] { null };
+			this.recvAddrs = new String[] { builder.recvAddr };
+			this.sendAddrs = new String[] { builder.sendAddr };
+		} else {
+			final int n = builder.servers.size();
+			this.serverIds = new byte[n][];
+			this.recvAddrs = new String[n];
+			this.sendAddrs = new String[n];
+			for (int i = 0; i < n; i++) {
+				final String[] server = builder.servers.get(i);
+				this.serverIds[i] = server[0].getBytes(ASCII);
+				this.recvAddrs[i] = server[1];
+				this.sendAddrs[i] = server[2];
+			}
+		}
+		this.options = new Transport.Options(builder.linger, builder.receiveBufferSize,
+				builder.receiveHighWaterMark, builder.reconnectInterval, builder.reconnectIntervalMax,
+				builder.sendBufferSize, builder.sendHighWaterMark);
 		this.active = new AtomicBoolean();
 	}
 
+	/**
+	 * Deactivates this handler like setActive(false), but keeps responses not
+	 * yet delivered to Mongrel2 for up to the given time, regardless of the
+	 * configured linger. Used to drain the handler for a rolling restart once
+	 * all requests have been answered.
+	 * 
+	 * @param timeout
+	 *            the maximum time to keep undelivered responses
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void deactivate(final long timeout, final TimeUnit unit) {
+		if (this.active.getAndSet(false)) {
+			this.connection.close(Math.max(0, unit.toMillis(timeout)));
+			this.connection = null;
+		}
+	}
+
+	/**
+	 * Returns the unique identifier of this handler.
+	 * 
+	 * @return the sender id
+	 */
+	public String getSenderId() {
+		return this.senderId;
+	}
+
 	/**
 	 * Returns if this handler is connected to Mongrel2.
 	 * 
@@ -124,37 +504,14 @@ public class Mongrel2Handler {
 	 *            one or more requests to receive the response.
 	 * @throws IOException
 	 */
+	@Override
 	public void sendResponse(final Response response, final Request... recipients) throws IOException {
-
-		if (recipients == null || recipients.length == 0)
-			throw new IllegalArgumentException();
-
-		// use sender addr of first request
-		final String senderAddr = recipients[0].getSenderAddr();
-		final String recipientNetString = formatNetString(recipients);
-
-		// construct mongrel2 response
-		final StringBuilder responseStr = new StringBuilder();
-		responseStr.append(senderAddr);
-		responseStr.append(SPACE_CHAR);
-		responseStr.append(recipientNetString);
-		responseStr.append(SPACE_CHAR);
-
-		response.transform();
-
-		final ByteArrayOutputStream out = new ByteArrayOutputStream();
-		out.write(responseStr.toString().getBytes(ASCII));
-		out.write(response.getPayload());
-		out.close();
-
-		// send
-		this.responses.send(out.toByteArray(), 0);
-
+		send(encodeResponse(response, recipients));
 	}
 
 	/**
 	 * Sets this handler active or inactive. When switching from inactive to
-	 * active the necessary ZeroMQ connections will be opened to receive
+	 * active the necessary transport connections will be opened to receive
 	 * requests and be able to send responses to Mongrel2. When switching from
 	 * active to inactive, all connections and resources are closed.
 	 * 
@@ -168,27 +525,13 @@ public class Mongrel2Handler {
 		if (active && !wasActive) {
 
 			// initialize
-			this.context = ZMQ.context(1);
-			this.requests = this.context.socket(ZMQ.PULL);
-			this.requests.setLinger(0);
-			this.responses = this.context.socket(ZMQ.PUB);
-			this.responses.setIdentity(this.senderId.getBytes());
-			this.responses.setLinger(0);
-			this.requests.connect(this.recvAddr);
-			this.responses.connect(this.sendAddr);
+			this.connection = this.transport.connect(this.senderId, this.recvAddrs, this.sendAddrs, this.options);
 
 		} else if (!active && wasActive) {
 
 			// shutdown
-			this.requests.close();
-			this.requests = null;
-			this.responses.close();
-			this.responses = null;
-			// Terminating the context causes apps to hang sometimes.
-			// Not terminating explicitly will cause the context to terminate
-			// when the object is garbage collected.
-			// this.context.term();
-			this.context = null;
+			this.connection.close(this.options.getLinger());
+			this.connection = null;
 
 		}
 
@@ -200,7 +543,152 @@ public class Mongrel2Handler {
 	 * @return next HTTP request
 	 */
 	public void takeRequest(final Request req) {
-		req.parse(this.requests.recv(0));
+		parse(req, receive(-1));
+	}
+
+	/**
+	 * Reads the next request from Mongrel2, waiting at most the given time for
+	 * one to arrive. A timeout of zero returns immediately.
+	 * 
+	 * @param req
+	 *            the request to populate
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if a request was read, false if the timeout elapsed.
+	 */
+	public boolean takeRequest(final Request req, final long timeout, final TimeUnit unit) {
+		final byte[] raw = receive(Math.max(0, unit.toMillis(timeout)));
+		if (raw == null)
+			return false;
+		parse(req, raw);
+		return true;
+	}
+
+	/**
+	 * Reads all requests already queued, up to the length of the given array,
+	 * blocking until at least one arrives. Draining the queue in one call
+	 * saves a wakeup per request under load. Malformed messages are skipped.
+	 * 
+	 * @param reqs
+	 *            the requests to populate, in order
+	 * @return the number of requests populated
+	 */
+	public int takeRequests(final Request[] reqs) {
+		return takeRequests(reqs, -1);
+	}
+
+	/**
+	 * Reads all requests already queued, up to the length of the given array,
+	 * waiting at most the given time for the first one to arrive. Malformed
+	 * messages are skipped.
+	 * 
+	 * @param reqs
+	 *            the requests to populate, in order
+	 * @param timeout
+	 *            the maximum time to wait for the first request
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the number of requests populated, zero if the timeout elapsed.
+	 */
+	public int takeRequests(final Request[] reqs, final long timeout, final TimeUnit unit) {
+		return takeRequests(reqs, Math.max(0, unit.toMillis(timeout)));
+	}
+
+	/**
+	 * Returns the open connection of an active handler, otherwise, null.
+	 */
+	Transport.Connection getConnection() {
+		return this.connection;
+	}
+
+	/**
+	 * Parses a raw message received by this handler into the request.
+	 */
+	void parse(final Request req, final byte[] raw) {
+		req.parse(raw, this.headerCache);
+	}
+
+	private int takeRequests(final Request[] reqs, final long timeout) {
+
+		final byte[][] messages = new byte[reqs.length][];
+		final int received = receive(messages, timeout);
+
+		int count = 0;
+		for (int i = 0; i < received; i++) {
+			try {
+				parse(reqs[count], messages[i]);
+				count++;
+			} catch (final RuntimeException x) {
+				// skip the malformed message and reuse the request for the next one
+			}
+		}
+
+		return count;
+
+	}
+
+	/**
+	 * Receives the next raw Mongrel2 message. Must only be called by the
+	 * thread that owns the request socket.
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait for a message, zero to return
+	 *            immediately or negative to block until one arrives
+	 * @return the raw message or null if none arrived in time
+	 */
+	byte[] receive(final long timeout) {
+		return this.connection.receive(timeout);
+	}
+
+	/**
+	 * Receives up to messages.length raw Mongrel2 messages, waiting for the
+	 * first as in {@link #receive(long)} and draining the rest without
+	 * waiting. Must only be called by the thread that owns the request socket.
+	 * 
+	 * @return the number of messages received
+	 */
+	int receive(final byte[][] messages, final long timeout) {
+		return receive(messages, messages.length, timeout);
+	}
+
+	/**
+	 * Receives up to limit raw Mongrel2 messages as in
+	 * {@link #receive(byte[][], long)}. Returns zero without receiving if the
+	 * limit or the array leaves no room.
+	 */
+	int receive(final byte[][] messages, final int limit, final long timeout) {
+		final int max = Math.min(limit, messages.length);
+		if (max <= 0)
+			return 0;
+		int count = 0;
+		byte[] raw = receive(timeout);
+		while (raw != null) {
+			messages[count++] = raw;
+			raw = (count < max) ? receive(0) : null;
+		}
+		return count;
+	}
+
+	/**
+	 * Publishes an encoded response. Must only be called by the thread that
+	 * owns the response socket.
+	 */
+	void send(final byte[] message) throws IOException {
+		if (this.serverIds.length == 1) {
+			this.connection.send(0, message);
+			return;
+		}
+		// route by the sender address at the start of the message
+		for (int i = 0; i < this.serverIds.length; i++) {
+			if (startsWithServerId(message, this.serverIds[i])) {
+				this.connection.send(i, message);
+				return;
+			}
+		}
+		final int end = Math.max(0, findSpace(message));
+		throw new IOException("No Mongrel2 server for sender: " + new String(message, 0, end, ASCII));
 	}
 
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.zeromq.ZMQ;
+
+/**
+ * A group of shard handlers sharing a single ZeroMQ context. Each shard has
+ * its own handler, sockets, thread and request handler, so shards never lock
+ * against each other and throughput scales with the number of cores. Mongrel2
+ * load balances requests between the shards as it would between separate
+ * handler processes.
+ * 
+ * <pre>
+ * Mongrel2HandlerGroup group = new Mongrel2HandlerGroup(SENDER_ID, RECV_ADDR, SEND_ADDR);
+ * group.start(requestHandler);
+ * ...
+ * group.stop();
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class Mongrel2HandlerGroup {
+
+	private static final int MAX_RECEIVE_BATCH = 64;
+	private static final long POLL_INTERVAL = 100;
+
+	private static String[] shardIds(final String senderId, final int shards) {
+		final String[] ids = new String[shards];
+		for (int i = 0; i < shards; i++)
+			ids[i] = senderId + "-" + i;
+		return ids;
+	}
+
+	private ZMQ.Context context = null;
+	private final Mongrel2Handler[] handlers;
+	private final int ioThreads;
+	private final String recvAddr;
+	private final AtomicBoolean running;
+	private final String sendAddr;
+	private final String[] senderIds;
+	private Thread[] threads = null;
+
+	/**
+	 * Construct a group with one shard per available processor and a single
+	 * ZeroMQ I/O thread. Shard sender ids are the given id suffixed with the
+	 * shard index.
+	 * 
+	 * @param senderId
+	 *            the base identifier for the shards
+	 * @param recvAddr
+	 *            the same as the send_spec in the mongrel2 handler
+	 *            configuration
+	 * @param sendAddr
+	 *            the same as the recv_spec in the mongrel2 handler
+	 *            configuration
+	 */
+	public Mongrel2HandlerGroup(final String senderId, final String recvAddr, final String sendAddr) {
+		this(shardIds(senderId, Runtime.getRuntime().availableProcessors()), recvAddr, sendAddr, 1);
+	}
+
+	/**
+	 * Construct a group with one shard per given sender id.
+	 * 
+	 * @param senderIds
+	 *            unique and persistent identifiers, one per shard
+	 * @param recvAddr
+	 *            the same as the send_spec in the mongrel2 handler
+	 *            configuration
+	 * @param sendAddr
+	 *            the same as the recv_spec in the mongrel2 handler
+	 *            configuration
+	 * @param ioThreads
+	 *            the number of I/O threads of the shared ZeroMQ context
+	 */
+	public Mongrel2HandlerGroup(final String[] senderIds, final String recvAddr, final String sendAddr,
+			final int ioThreads) {
+		if (senderIds.length == 0 || ioThreads < 1)
+			throw new IllegalArgumentException();
+		this.senderIds = senderIds.clone();
+		this.recvAddr = recvAddr;
+		this.sendAddr = sendAddr;
+		this.ioThreads = ioThreads;
+		this.handlers = new Mongrel2Handler[senderIds.length];
+		this.running = new AtomicBoolean();
+	}
+
+	/**
+	 * Construct a group with the given number of shards. Shard sender ids are
+	 * the given id suffixed with the shard index.
+	 * 
+	 * @param senderId
+	 *            the base identifier for the shards
+	 * @param recvAddr
+	 *            the same as the send_spec in the mongrel2 handler
+	 *            configuration
+	 * @param sendAddr
+	 *            the same as the recv_spec in the mongrel2 handler
+	 *            configuration
+	 * @param shards
+	 *            the number of shards
+	 * @param ioThreads
+	 *            the number of I/O threads of the shared ZeroMQ context
+	 */
+	public Mongrel2HandlerGroup(final String senderId, final String recvAddr, final String sendAddr,
+			final int shards, final int ioThreads) {
+		this(shardIds(senderId, shards), recvAddr, sendAddr, ioThreads);
+	}
+
+	/**
+	 * Returns the handler of a shard. Only valid while the group is running.
+	 * 
+	 * @param shard
+	 *            the index of the shard
+	 * @return the handler of the shard
+	 */
+	public Mongrel2Handler getHandler(final int shard) {
+		return this.handlers[shard];
+	}
+
+	/**
+	 * Returns the number of shards in this group.
+	 * 
+	 * @return number of shards
+	 */
+	public int getShardCount() {
+		return this.senderIds.length;
+	}
+
+	/**
+	 * Returns if the shards are running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Start all shards, each passing its requests to the same request handler.
+	 * The request handler must be thread-safe.
+	 * 
+	 * @param requestHandler
+	 *            the application callback shared by all shards
+	 */
+	public void start(final RequestHandler requestHandler) {
+		start(new RequestHandlerFactory() {
+			@Override
+			public RequestHandler newRequestHandler(final int shard) {
+				return requestHandler;
+			}
+		});
+	}
+
+	/**
+	 * Start all shards, each passing its requests to its own request handler.
+	 * 
+	 * @param factory
+	 *            creates the request handler of each shard
+	 */
+	public synchronized void start(final RequestHandlerFactory factory) {
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.context = ZMQ.context(this.ioThreads);
+		this.threads = new Thread[this.handlers.length];
+
+		for (int i = 0; i < this.handlers.length; i++) {
+			final Mongrel2Handler handler = new Mongrel2Handler(this.context, this.senderIds[i], this.recvAddr,
+					this.sendAddr);
+			final RequestHandler requestHandler = factory.newRequestHandler(i);
+			this.handlers[i] = handler;
+			this.threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runShard(handler, requestHandler);
+				}
+			}, "mongrel2-shard-" + i);
+		}
+
+		for (final Thread thread : this.threads)
+			thread.start();
+
+	}
+
+	/**
+	 * Stop all shards, close their sockets and terminate the shared context.
+	 * Each shard closes its sockets without linger when it stops, and the
+	 * context is terminated only after all shard threads have finished, as
+	 * terminating it blocks while any socket is open. Responses not yet
+	 * delivered to Mongrel2 are dropped.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		for (final Thread thread : this.threads)
+			thread.join();
+		this.threads = null;
+
+		this.context.term();
+		this.context = null;
+
+	}
+
+	private void runShard(final Mongrel2Handler handler, final RequestHandler requestHandler) {
+
+		handler.setActive(true);
+
+		try {
+
+			final HttpRequest[] batch = new HttpRequest[MAX_RECEIVE_BATCH];
+
+			while (this.running.get()) {
+
+				// requests may be kept by the request handler, never reuse them
+				for (int i = 0; i < batch.length; i++)
+					if (batch[i] == null)
+						batch[i] = new HttpRequest();
+
+				final int count = handler.takeRequests(batch, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+				for (int i = 0; i < count; i++) {
+					final HttpRequest request = batch[i];
+					batch[i] = null;
+					try {
+						request.decodeHeaders();
+					} catch (final RuntimeException x) {
+						x.printStackTrace();
+						Mongrel2Handler.sendError(handler, HttpStatus.BadRequest, request);
+						continue;
+					}
+					try {
+						requestHandler.handleRequest(request, handler);
+					} catch (final Exception x) {
+						x.printStackTrace();
+						Mongrel2Handler.sendError(handler, HttpStatus.InternalServerError, request);
+					}
+				}
+
+			}
+
+		} finally {
+			// without linger, so the shared context can terminate once all shards have left
+			handler.deactivate(0, TimeUnit.MILLISECONDS);
+		}
+
+	}
+
+}
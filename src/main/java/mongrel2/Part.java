@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A part of a multipart/form-data request body, such as an uploaded file. The
+ * content of the part is not copied out of the request body; the request
+ * must not be reused while its parts are in use.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class Part {
+
+	private final byte[] data;
+	private final String fileName;
+	private final Map<String, String> headers; // all keys uppercase
+	private final int length;
+	private final String name;
+	private final int offset;
+
+	Part(final String name, final String fileName, final Map<String, String> headers, final byte[] data,
+			final int offset, final int length) {
+		this.name = name;
+		this.fileName = fileName;
+		this.headers = headers;
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Returns a read-only view of the content of the part without copying it.
+	 * 
+	 * @return the content, positioned at its start
+	 */
+	public ByteBuffer getContent() {
+		return ByteBuffer.wrap(this.data, this.offset, this.length).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the value of the Content-Type header of the part, if present.
+	 * 
+	 * @return Value of the Content-Type header
+	 */
+	public String getContentType() {
+		return getHeader(HttpHeader.CONTENT_TYPE);
+	}
+
+	/**
+	 * Returns the file name given by the client for an uploaded file.
+	 * 
+	 * @return the file name, or null if the part is a form field
+	 */
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	public String getHeader(final String name) {
+		if (name == null)
+			return null;
+		return this.headers.get(name.toUpperCase());
+	}
+
+	public Iterable<String> getHeaderNames() {
+		return this.headers.keySet();
+	}
+
+	/**
+	 * Returns a stream over the content of the part without copying it.
+	 * 
+	 * @return the content as a stream
+	 */
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(this.data, this.offset, this.length);
+	}
+
+	/**
+	 * Returns the name of the form field of the part.
+	 * 
+	 * @return the field name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the size of the content of the part.
+	 * 
+	 * @return the size in bytes
+	 */
+	public int getSize() {
+		return this.length;
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs requests in separate lanes, each with its own worker threads and
+ * bounded queue, so that cheap requests such as load balancer health checks
+ * keep a low latency while the workers of slow routes are saturated. Requests
+ * are assigned to lanes by a {@link RequestClassifier}; a request classified
+ * outside the range of lanes runs in the last lane. When the queue of a lane
+ * is full its requests are answered with 503 Service Unavailable.
+ * 
+ * <pre>
+ * PriorityLanes lanes = new PriorityLanes(classifier, new int[] { 1, 8, 2 }, 100);
+ * Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, requestHandler, lanes);
+ * dispatcher.start();
+ * ...
+ * dispatcher.stop();
+ * lanes.shutdown();
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class PriorityLanes implements RequestExecutor {
+
+	private final RequestClassifier classifier;
+	private final ThreadPoolExecutor[] lanes;
+
+	/**
+	 * @param classifier
+	 *            assigns each request to a lane
+	 * @param workerThreads
+	 *            the number of worker threads of each lane
+	 * @param queueCapacity
+	 *            the maximum number of requests waiting in each lane
+	 */
+	public PriorityLanes(final RequestClassifier classifier, final int[] workerThreads, final int queueCapacity) {
+
+		if (classifier == null || workerThreads.length == 0 || queueCapacity < 1)
+			throw new IllegalArgumentException();
+
+		this.classifier = classifier;
+		this.lanes = new ThreadPoolExecutor[workerThreads.length];
+		for (int i = 0; i < this.lanes.length; i++) {
+			this.lanes[i] = new ThreadPoolExecutor(workerThreads[i], workerThreads[i], 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(queueCapacity), newThreadFactory(i));
+		}
+
+	}
+
+	@Override
+	public void execute(final HttpRequest request, final Runnable task) {
+		this.lanes[findLane(request)].execute(task);
+	}
+
+	/**
+	 * Returns the number of lanes.
+	 * 
+	 * @return number of lanes
+	 */
+	public int getLaneCount() {
+		return this.lanes.length;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a worker in a lane.
+	 * 
+	 * @param lane
+	 *            the index of the lane
+	 * @return number of waiting requests
+	 */
+	public int getQueueDepth(final int lane) {
+		return this.lanes[lane].getQueue().size();
+	}
+
+	/**
+	 * Stop accepting requests; requests already queued are still handled.
+	 */
+	public void shutdown() {
+		for (final ThreadPoolExecutor lane : this.lanes)
+			lane.shutdown();
+	}
+
+	private int findLane(final HttpRequest request) {
+		final int lane = this.classifier.classify(request);
+		return (lane < 0 || lane >= this.lanes.length) ? this.lanes.length - 1 : lane;
+	}
+
+	private ThreadFactory newThreadFactory(final int lane) {
+		final ThreadFactory defaults = Executors.defaultThreadFactory();
+		return new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(final Runnable r) {
+				final Thread thread = defaults.newThread(r);
+				thread.setName("mongrel2-lane-" + lane + "-" + this.count++);
+				return thread;
+			}
+		};
+	}
+
+}
@@ -16,18 +16,26 @@
 
 package mongrel2;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generic request as received from mongrel2.
  * 
+ * Parsing only locates the fields of the raw message, which is kept as is.
+ * Headers are decoded on first access and the body is copied only if asked
+ * for as an array, see {@link #getContentBuffer()}. The raw message must
+ * therefore not be modified after it was parsed. Headers may be sent with
+ * either the json or the tnetstring handler protocol, which is detected for
+ * each message.
+ * 
  * @author Karl Ostendorf
  * 
  */
@@ -39,6 +47,12 @@ public class Request {
 	protected static final Charset ASCII = Charset.forName("US-ASCII");
 	protected static final Charset UTF8 = Charset.forName("UTF-8");
 
+	private static final byte[] EMPTY = new byte[0];
+	private static final int STATE_ANSWERED = 2;
+	private static final int STATE_CANCELLED = 3;
+	private static final int STATE_NEW = 0;
+	private static final int STATE_OPEN = 1;
+
 	private static int findNextDelimiter(final byte[] raw, final int last, final char delimiter) {
 		final int start = last + 1;
 		for (int i = start; i < raw.length; i++)
@@ -47,21 +61,38 @@ public class Request {
 		return -1;
 	}
 
+	private long admitted = 0;
 	protected final Map<String, Object> attributes;
-	protected byte[] content = new byte[0];
-	protected final Map<String, String[]> headers; // all keys uppercase
+	protected byte[] content = EMPTY; // null until copied from raw, read with getContent()
+	private int contentLength = 0;
+	private int contentOffset = 0;
+	private long deadline = 0;
+	private boolean hasDeadline = false;
+	private HeaderCache headerCache = null;
+	protected final Map<String, String[]> headers; // other than well-known, all keys uppercase
+	private int headersLength = 0;
+	private int headersOffset = 0;
 	protected final Map<String, String> headersOriginalKeyNames;
+	private boolean headersPending = false;
+	private HeaderCache.Table headerTable = null; // shared headers from the header cache
+	private boolean headersTNetString = false;
+	private final String[] knownHeaderNames; // by KnownHeaders slot, as sent
+	private final String[][] knownHeaders; // by KnownHeaders slot, override headerTable
+	private AdaptiveConcurrencyLimiter limiter = null;
+	private byte[] raw = null;
+	private final AtomicInteger state;
 
 	public Request() {
 		this.attributes = new HashMap<String, Object>();
 		this.headers = new HashMap<String, String[]>();
 		this.headersOriginalKeyNames = new HashMap<String, String>();
+		this.knownHeaderNames = new String[KnownHeaders.COUNT];
+		this.knownHeaders = new String[KnownHeaders.COUNT][];
+		this.state = new AtomicInteger(STATE_NEW);
 	}
 
 	public boolean containsHeader(final String name) {
-		if (name == null)
-			return false;
-		return this.headers.containsKey(name.toUpperCase());
+		return getHeaderValues(name) != null;
 	}
 
 	public Object getAttribute(final String name) {
@@ -72,10 +103,29 @@ public class Request {
 		return this.attributes.keySet();
 	}
 
+	/**
+	 * Returns the body of the request. The body is copied out of the raw
+	 * message on the first call.
+	 * 
+	 * @return the body
+	 */
 	public byte[] getContent() {
+		if (this.content == null)
+			this.content = Arrays.copyOfRange(this.raw, this.contentOffset, this.contentOffset + this.contentLength);
 		return this.content;
 	}
 
+	/**
+	 * Returns a read-only view of the body of the request without copying it.
+	 * 
+	 * @return the body, positioned at its start
+	 */
+	public ByteBuffer getContentBuffer() {
+		if (this.content == null)
+			return ByteBuffer.wrap(this.raw, this.contentOffset, this.contentLength).slice().asReadOnlyBuffer();
+		return ByteBuffer.wrap(this.content).asReadOnlyBuffer();
+	}
+
 	/**
 	 * Returns the first value for the header. If there are multiple values for
 	 * a header, use {@link #getHeaderValues(String)}
@@ -84,20 +134,58 @@ public class Request {
 	 * @return the first value for the named header
 	 */
 	public String getHeader(final String name) {
-		final String key = name;
-		if (containsHeader(key))
-			return getHeaderValues(key)[0];
-		return null;
+		final String[] values = getHeaderValues(name);
+		return (values == null) ? null : values[0];
 	}
 
 	public Iterable<String> getHeaderNames() {
-		return this.headersOriginalKeyNames.values();
+
+		decodeHeaders();
+
+		final List<String> names = new ArrayList<String>();
+		for (int slot = 0; slot < KnownHeaders.COUNT; slot++) {
+			if (this.knownHeaderNames[slot] != null)
+				names.add(this.knownHeaderNames[slot]);
+			else if (this.headerTable != null && this.headerTable.knownHeaderNames[slot] != null)
+				names.add(this.headerTable.knownHeaderNames[slot]);
+		}
+		if (this.headerTable != null) {
+			for (final Map.Entry<String, String> entry : this.headerTable.originalKeyNames.entrySet())
+				if (!this.headersOriginalKeyNames.containsKey(entry.getKey()))
+					names.add(entry.getValue());
+		}
+		names.addAll(this.headersOriginalKeyNames.values());
+
+		return names;
+
 	}
 
 	public String[] getHeaderValues(final String name) {
 		if (name == null)
 			return null;
-		return this.headers.get(name.toUpperCase());
+		final int slot = KnownHeaders.slot(name);
+		if (slot != -1)
+			return getHeaderValues(slot);
+		decodeHeaders();
+		final String key = name.toUpperCase();
+		final String[] values = this.headers.get(key);
+		if (values == null && this.headerTable != null)
+			return this.headerTable.headers.get(key);
+		return values;
+	}
+
+	/**
+	 * Returns the time left until the deadline of the request, which may be
+	 * negative once it has passed.
+	 * 
+	 * @param unit
+	 *            the unit of the result
+	 * @return the remaining time, or Long.MAX_VALUE if there is no deadline
+	 */
+	public long getRemainingTime(final TimeUnit unit) {
+		if (!this.hasDeadline)
+			return Long.MAX_VALUE;
+		return unit.convert(this.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
 	}
 
 	public String getRequestId() {
@@ -108,6 +196,18 @@ public class Request {
 		return (String) getAttribute(ATTR_SENDER_ADDR);
 	}
 
+	/**
+	 * Returns if the request has been given up, for instance because its
+	 * deadline passed and it was already answered with a timeout. Long running
+	 * request handlers should check this now and then and drop their work
+	 * once it returns true, as any response will be discarded.
+	 * 
+	 * @return true if cancelled, otherwise, false.
+	 */
+	public boolean isCancelled() {
+		return this.state.get() == STATE_CANCELLED;
+	}
+
 	protected void addHeader(final String name, final String value) {
 		if (!containsHeader(name)) {
 			setHeader(name, value);
@@ -122,16 +222,27 @@ public class Request {
 	}
 
 	protected void parse(final byte[] raw) {
+		parse(raw, null);
+	}
+
+	/**
+	 * Parses the raw message, taking the headers from the given cache if
+	 * possible.
+	 * 
+	 * @param raw
+	 *            the message received from Mongrel2
+	 * @param headerCache
+	 *            the cache of parsed headers, or null
+	 */
+	protected void parse(final byte[] raw, final HeaderCache headerCache) {
 
 		// Mongrel2 sends requests formatted as follows:
 		// UUID ID PATH SIZE:HEADERS,SIZE:BODY,
+		// where HEADERS is a JSON object, or with the tnetstring protocol:
+		// UUID ID PATH SIZE:HEADERS}SIZE:BODY,
+		// where HEADERS are the contents of a tnetstring dict
 
-		try {
-			System.out.write(raw);
-			System.out.println();
-		} catch (final Exception x) {
-			// ignore
-		}
+		reset();
 
 		int p0 = -1;
 		int p1 = -1;
@@ -139,7 +250,7 @@ public class Request {
 
 		// sender addr
 		p1 = findNextDelimiter(raw, p0, ' ');
-		setSenderAddr(new String(raw, p0 + 1, p1 - p0 - 1, ASCII));
+		setSenderAddr(Interner.intern(raw, p0 + 1, p1));
 
 		// request-id
 		p0 = p1;
@@ -152,43 +263,248 @@ public class Request {
 		// ignore: matching path is the whole path,
 		// not the handler path definied in the mongrel2 config
 
-		// headers
+		// headers, decoded on first access
 		p0 = p1;
 		p1 = findNextDelimiter(raw, p0, ':');
-		length = Integer.parseInt(new String(raw, p0 + 1, p1 - p0 - 1));
-		final String jsonHeaders = new String(raw, p1 + 1, length, UTF8);
-		try {
-			final JSONObject headers = new JSONObject(jsonHeaders);
-			@SuppressWarnings("unchecked")
-			final Iterator<String> i = headers.keys();
-			while (i.hasNext()) {
-				final String key = i.next();
-				final String value = headers.getString(key);
-				// System.out.printf("%s: %s%n", key, value);
-				addHeader(key, value);
-			}
-		} catch (final JSONException x) {
-			throw new RuntimeException("Cannot parse Json headers: " + jsonHeaders);
-		}
-
-		// content
+		length = Integer.parseInt(new String(raw, p0 + 1, p1 - p0 - 1, ASCII));
+		if (length < 0 || p1 + 1 + length >= raw.length)
+			throw new RuntimeException("Truncated headers in request " + getRequestId());
+		this.headersOffset = p1 + 1;
+		this.headersLength = length;
+		this.headersTNetString = raw[p1 + 1 + length] == '}';
+
+		// content, copied on first access
 		p0 = p1 + length + 1;
 		p1 = findNextDelimiter(raw, p0, ':');
-		length = Integer.parseInt(new String(raw, p0 + 1, p1 - p0 - 1));
-		setContent(Arrays.copyOfRange(raw, p1 + 1, p1 + 1 + length));
+		length = Integer.parseInt(new String(raw, p0 + 1, p1 - p0 - 1, ASCII));
+		if (length < 0 || p1 + 1 + length > raw.length)
+			throw new RuntimeException("Truncated content in request " + getRequestId());
+		this.contentOffset = p1 + 1;
+		this.contentLength = length;
+
+		this.raw = raw;
+		this.headerCache = headerCache;
+		this.headersPending = true;
+		this.content = null;
+
+	}
+
+	/**
+	 * Adds a header decoded from the raw message. Unlike
+	 * {@link #addHeader(String, String)} it bypasses overrides of setHeader,
+	 * which may reset fields derived from the headers while they are being
+	 * computed.
+	 */
+	void addDecodedHeader(final String name, final String value) {
+		final String[] values = getHeaderValues(name);
+		if (values == null) {
+			putHeader(name, new String[] { value });
+		} else {
+			final String[] newValues = new String[values.length + 1];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			newValues[values.length] = value;
+			putHeader(name, newValues);
+		}
+	}
+
+	/**
+	 * Records that a response is being sent to the request.
+	 * 
+	 * @return false if the request was cancelled and must not be answered.
+	 */
+	boolean answer() {
+		return this.state.compareAndSet(STATE_OPEN, STATE_ANSWERED)
+				|| this.state.compareAndSet(STATE_NEW, STATE_ANSWERED) || this.state.get() == STATE_ANSWERED;
+	}
+
+	/**
+	 * Cancels the request unless a response has already been sent to it.
+	 * 
+	 * @return true if cancelled by this call
+	 */
+	boolean cancel() {
+		return this.state.compareAndSet(STATE_OPEN, STATE_CANCELLED);
+	}
+
+	/**
+	 * Decodes the headers of the raw message, if not done yet. Callers on an
+	 * I/O thread force this right after parsing, while a malformed header
+	 * block can still be dropped.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the header block is malformed
+	 */
+	void decodeHeaders() {
+
+		if (!this.headersPending)
+			return;
+		this.headersPending = false;
+
+		if (this.headerCache != null)
+			this.headerCache.decode(this, this.raw, this.headersOffset, this.headersLength, this.headersTNetString);
+		else if (this.headersTNetString)
+			TNetStrings.parseHeaders(this.raw, this.headersOffset, this.headersLength, this);
+		else
+			JsonHeaders.parse(this.raw, this.headersOffset, this.headersLength, this);
 
 	}
 
+	/**
+	 * Returns the array holding the body, either the raw message or a copy,
+	 * see {@link #getContentOffset()} and {@link #getContentSize()}.
+	 */
+	byte[] getContentData() {
+		return (this.content == null) ? this.raw : this.content;
+	}
+
+	int getContentOffset() {
+		return (this.content == null) ? this.contentOffset : 0;
+	}
+
+	int getContentSize() {
+		return (this.content == null) ? this.contentLength : this.content.length;
+	}
+
+	long getDeadline() {
+		return this.deadline;
+	}
+
+	/**
+	 * Returns the first value of the well-known header in the given slot.
+	 */
+	String getHeader(final int slot) {
+		final String[] values = getHeaderValues(slot);
+		return (values == null) ? null : values[0];
+	}
+
+	/**
+	 * Returns the values of the well-known header in the given slot.
+	 */
+	String[] getHeaderValues(final int slot) {
+		decodeHeaders();
+		final String[] values = this.knownHeaders[slot];
+		if (values == null && this.headerTable != null)
+			return this.headerTable.knownHeaders[slot];
+		return values;
+	}
+
+	/**
+	 * Returns if the request is in flight, neither answered nor cancelled.
+	 */
+	boolean isOpen() {
+		return this.state.get() == STATE_OPEN;
+	}
+
+	/**
+	 * Copies the headers of this request, less the given well-known headers,
+	 * to share them with later requests.
+	 */
+	HeaderCache.Table newHeaderTable(final int[] excluded) {
+		final String[][] known = this.knownHeaders.clone();
+		final String[] knownNames = this.knownHeaderNames.clone();
+		for (final int slot : excluded) {
+			known[slot] = null;
+			knownNames[slot] = null;
+		}
+		return new HeaderCache.Table(known, knownNames, new HashMap<String, String[]>(this.headers),
+				new HashMap<String, String>(this.headersOriginalKeyNames));
+	}
+
+	/**
+	 * Records the first response to a request which was opened by a
+	 * dispatcher.
+	 * 
+	 * @return true if the request was open and is now answered by this call
+	 */
+	boolean markAnswered() {
+		return this.state.compareAndSet(STATE_OPEN, STATE_ANSWERED);
+	}
+
+	/**
+	 * Marks the request as in flight, awaiting a response or cancellation.
+	 */
+	void open() {
+		this.state.compareAndSet(STATE_NEW, STATE_OPEN);
+	}
+
+	/**
+	 * Releases the limiter which admitted the request, if any, with the time
+	 * since its admission as the latency sample. Called once the request is
+	 * answered or expired.
+	 */
+	void releaseLimiter() {
+		final AdaptiveConcurrencyLimiter limiter = this.limiter;
+		if (limiter != null) {
+			this.limiter = null;
+			limiter.release(System.nanoTime() - this.admitted);
+		}
+	}
+
+	/**
+	 * Sets the deadline of the request.
+	 * 
+	 * @param deadline
+	 *            the deadline as a value of System.nanoTime()
+	 */
+	void setDeadline(final long deadline) {
+		this.deadline = deadline;
+		this.hasDeadline = true;
+	}
+
+	/**
+	 * Shares the headers of an earlier request with the same header block.
+	 * Headers set on this request take precedence.
+	 */
+	void setHeaderTable(final HeaderCache.Table headerTable) {
+		this.headerTable = headerTable;
+	}
+
+	/**
+	 * Records the limiter which admitted the request, or null to forget it.
+	 */
+	void setLimiter(final AdaptiveConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+		this.admitted = System.nanoTime();
+	}
+
 	protected void removeAttribute(final String name) {
 		this.attributes.remove(name);
 	}
 
+	/**
+	 * Clears all state so the request can be parsed again.
+	 */
+	protected void reset() {
+		this.attributes.clear();
+		this.headers.clear();
+		this.headersOriginalKeyNames.clear();
+		Arrays.fill(this.knownHeaderNames, null);
+		Arrays.fill(this.knownHeaders, null);
+		this.headerCache = null;
+		this.headerTable = null;
+		this.headersPending = false;
+		this.headersTNetString = false;
+		this.headersOffset = 0;
+		this.headersLength = 0;
+		this.raw = null;
+		this.content = EMPTY;
+		this.contentOffset = 0;
+		this.contentLength = 0;
+		this.deadline = 0;
+		this.hasDeadline = false;
+		this.limiter = null;
+		this.admitted = 0;
+		this.state.set(STATE_NEW);
+	}
+
 	protected void setAttribute(final String name, final Object value) {
 		this.attributes.put(name, value);
 	}
 
 	protected void setContent(final byte[] content) {
 		this.content = content;
+		this.contentOffset = 0;
+		this.contentLength = content.length;
 	}
 
 	protected void setHeader(final String name, final String value) {
@@ -196,8 +512,8 @@ public class Request {
 	}
 
 	protected void setHeader(final String name, final String[] values) {
-		this.headersOriginalKeyNames.put(name.toUpperCase(), name);
-		this.headers.put(name.toUpperCase(), values);
+		decodeHeaders();
+		putHeader(name, values);
 	}
 
 	protected void setRequestId(final String requestId) {
@@ -208,4 +524,16 @@ public class Request {
 		setAttribute(ATTR_SENDER_ADDR, senderAddr);
 	}
 
+	private void putHeader(final String name, final String[] values) {
+		final int slot = KnownHeaders.slot(name);
+		if (slot != -1) {
+			this.knownHeaderNames[slot] = name;
+			this.knownHeaders[slot] = values;
+		} else {
+			final String key = name.toUpperCase();
+			this.headersOriginalKeyNames.put(key, name);
+			this.headers.put(key, values);
+		}
+	}
+
 }
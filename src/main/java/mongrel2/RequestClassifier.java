@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+/**
+ * Assigns requests to the lanes of {@link PriorityLanes}, for instance by
+ * method, path or header.
+ * 
+ * <pre>
+ * public int classify(HttpRequest request) {
+ * 	if (request.getRequestURI().equals(&quot;/health&quot;))
+ * 		return 0;
+ * 	if (request.getRequestURI().startsWith(&quot;/reports/&quot;))
+ * 		return 2;
+ * 	return 1;
+ * }
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface RequestClassifier {
+
+	/**
+	 * Classify a request. Called on the dispatcher's I/O thread, so it must
+	 * be quick and never block.
+	 * 
+	 * @param request
+	 *            the parsed request
+	 * @return the index of the lane, starting at zero
+	 */
+	int classify(HttpRequest request);
+
+}
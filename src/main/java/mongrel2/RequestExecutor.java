@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decides where a {@link Mongrel2Dispatcher} runs the handling of each
+ * request. Unlike a plain executor it sees the request, so it may treat
+ * requests differently, as {@link PriorityLanes} does.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface RequestExecutor {
+
+	/**
+	 * Run the handling of the request, usually on another thread.
+	 * 
+	 * @param request
+	 *            the parsed request, which must not be modified
+	 * @param task
+	 *            runs the request handler for the request
+	 * @throws RejectedExecutionException
+	 *             if the task cannot be accepted, in which case the request
+	 *             is answered with 503 Service Unavailable
+	 */
+	void execute(HttpRequest request, Runnable task);
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+/**
+ * Application callback invoked for each request received from Mongrel2.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface RequestHandler {
+
+	/**
+	 * Handle a request. The response may be sent before returning or at any
+	 * later time, from any thread, via the given responder.
+	 * 
+	 * @param request
+	 *            the request received from Mongrel2
+	 * @param responder
+	 *            the responder used to answer the request
+	 * @throws Exception
+	 */
+	void handleRequest(HttpRequest request, Responder responder) throws Exception;
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+/**
+ * Creates a separate {@link RequestHandler} for each shard of a handler group
+ * so that shards do not share any state.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface RequestHandlerFactory {
+
+	/**
+	 * Create the request handler for a shard.
+	 * 
+	 * @param shard
+	 *            the index of the shard, starting at zero
+	 * @return the request handler used exclusively by that shard
+	 */
+	RequestHandler newRequestHandler(int shard);
+
+}
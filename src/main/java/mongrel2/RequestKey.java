@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+/**
+ * Extracts the key by which {@link KeyAffinityExecutor} assigns requests to
+ * shards, such as a session cookie, a path segment or a request parameter.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface RequestKey {
+
+	/**
+	 * Returns the key of a request. Called on the dispatcher's I/O thread, so
+	 * it must be quick and never block.
+	 * 
+	 * @param request
+	 *            the parsed request
+	 * @return the key, or null if the request has none
+	 */
+	Object getKey(HttpRequest request);
+
+}
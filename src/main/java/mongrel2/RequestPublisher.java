@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+
+/**
+ * Publishes the requests of a {@link Mongrel2Handler} to a single subscriber
+ * with demand-driven backpressure. Requests are only pulled from Mongrel2
+ * while the subscriber has outstanding demand; otherwise they stay queued in
+ * ZeroMQ, where Mongrel2 may hand them to other handler processes, instead of
+ * being buffered on the heap.
+ * 
+ * The nested Subscriber and Subscription interfaces follow the contract of
+ * java.util.concurrent.Flow (and Reactive Streams), so adapting them to
+ * either is mechanical. Responses are sent through the publisher, which
+ * writes them asynchronously from its own thread.
+ * 
+ * <pre>
+ * RequestPublisher publisher = new RequestPublisher(handler);
+ * publisher.subscribe(subscriber); // subscriber calls subscription.request(n)
+ * ...
+ * publisher.sendResponse(rsp, req);
+ * ...
+ * publisher.close();
+ * </pre>
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class RequestPublisher implements Responder {
+
+	/**
+	 * Receives the requests of a publisher, as java.util.concurrent.Flow.
+	 */
+	public interface Subscriber {
+
+		void onComplete();
+
+		void onError(Throwable throwable);
+
+		void onNext(HttpRequest request);
+
+		void onSubscribe(Subscription subscription);
+
+	}
+
+	/**
+	 * The link between a publisher and its subscriber, as
+	 * java.util.concurrent.Flow.
+	 */
+	public interface Subscription {
+
+		void cancel();
+
+		void request(long n);
+
+	}
+
+	private class RequestSubscription implements Subscription {
+
+		@Override
+		public void cancel() {
+			synchronized (RequestPublisher.this.lock) {
+				RequestPublisher.this.cancelled = true;
+				RequestPublisher.this.lock.notifyAll();
+			}
+		}
+
+		@Override
+		public void request(final long n) {
+			synchronized (RequestPublisher.this.lock) {
+				if (n <= 0) {
+					RequestPublisher.this.error = new IllegalArgumentException("Non-positive request: " + n);
+					RequestPublisher.this.cancelled = true;
+				} else {
+					final long demand = RequestPublisher.this.demand + n;
+					RequestPublisher.this.demand = (demand < 0) ? Long.MAX_VALUE : demand;
+				}
+				RequestPublisher.this.lock.notifyAll();
+			}
+		}
+
+	}
+
+	private static final Response BAD_REQUEST = Mongrel2Handler.encodeError(HttpStatus.BadRequest);
+	private static final int DEFAULT_RESPONSE_QUEUE_SIZE = 1024;
+	private static final int MAX_RECEIVE_BATCH = 64;
+	private static final long POLL_INTERVAL = 100;
+
+	private boolean cancelled = false;
+	private boolean closed = false;
+	private long demand = 0;
+	private Throwable error = null;
+	private final Mongrel2Handler handler;
+	private final Object lock;
+	private Thread receiverThread = null;
+	private Subscriber subscriber = null;
+	private final AsyncResponseWriter writer;
+
+	/**
+	 * Construct a publisher for an inactive handler, which is activated when
+	 * a subscriber subscribes.
+	 * 
+	 * @param handler
+	 *            the handler connected to Mongrel2
+	 */
+	public RequestPublisher(final Mongrel2Handler handler) {
+		this(handler, new AsyncResponseWriter(handler, DEFAULT_RESPONSE_QUEUE_SIZE));
+	}
+
+	/**
+	 * Construct a publisher writing its responses with the given writer, which
+	 * must write for the same handler and not have been started.
+	 * 
+	 * @param handler
+	 *            the handler connected to Mongrel2
+	 * @param writer
+	 *            the writer for the handler's responses
+	 */
+	public RequestPublisher(final Mongrel2Handler handler, final AsyncResponseWriter writer) {
+		this.handler = handler;
+		this.writer = writer;
+		this.lock = new Object();
+	}
+
+	/**
+	 * Stop pulling requests, complete the subscriber and, once all queued
+	 * responses have been written, deactivate the handler. Responses to
+	 * requests already delivered should be sent before closing.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+
+		final Thread thread;
+		synchronized (this.lock) {
+			this.closed = true;
+			this.lock.notifyAll();
+			thread = this.receiverThread;
+		}
+
+		if (thread != null)
+			thread.join();
+
+	}
+
+	/**
+	 * Returns the number of requests the subscriber has asked for but not yet
+	 * received.
+	 * 
+	 * @return outstanding demand
+	 */
+	public long getDemand() {
+		synchronized (this.lock) {
+			return this.demand;
+		}
+	}
+
+	/**
+	 * Queue a response to one or more requests. May be called from any thread.
+	 * 
+	 * @param response
+	 *            the response to send
+	 * @param recipients
+	 *            one or more requests to receive the response.
+	 * @throws IOException
+	 */
+	@Override
+	public void sendResponse(final Response response, final Request... recipients) throws IOException {
+		this.writer.sendResponse(response, recipients);
+	}
+
+	/**
+	 * Subscribe to the requests of this publisher. Only a single subscriber is
+	 * supported, as each request is delivered exactly once.
+	 * 
+	 * @param s
+	 *            the subscriber
+	 */
+	public void subscribe(final Subscriber s) {
+
+		synchronized (this.lock) {
+			if (this.subscriber != null || this.closed) {
+				s.onSubscribe(new Subscription() {
+					@Override
+					public void cancel() {
+						// nothing to cancel
+					}
+
+					@Override
+					public void request(final long n) {
+						// nothing to deliver
+					}
+				});
+				s.onError(new IllegalStateException("Publisher already subscribed or closed."));
+				return;
+			}
+			this.subscriber = s;
+		}
+
+		// activate before the threads start, so both see the sockets
+		this.handler.setActive(true);
+		this.writer.start();
+
+		this.receiverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runReceiver();
+			}
+		}, "mongrel2-request-publisher");
+
+		s.onSubscribe(new RequestSubscription());
+		this.receiverThread.start();
+
+	}
+
+	/**
+	 * Waits for demand and returns how many requests may be received, zero if
+	 * the subscription has ended.
+	 */
+	private int awaitDemand() throws InterruptedException {
+		synchronized (this.lock) {
+			while (this.demand == 0 && !this.cancelled && !this.closed)
+				this.lock.wait();
+			if (this.cancelled || this.closed)
+				return 0;
+			return (int) Math.min(this.demand, MAX_RECEIVE_BATCH);
+		}
+	}
+
+	private void reject(final HttpRequest request) {
+		try {
+			this.writer.sendResponse(BAD_REQUEST, request);
+		} catch (final IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private void runReceiver() {
+
+		final byte[][] batch = new byte[MAX_RECEIVE_BATCH][];
+		Throwable failure = null;
+
+		try {
+
+			int limit;
+			while ((limit = awaitDemand()) > 0) {
+
+				final int count = this.handler.receive(batch, limit, POLL_INTERVAL);
+
+				for (int i = 0; i < count; i++) {
+
+					final HttpRequest request = new HttpRequest();
+					try {
+						this.handler.parse(request, batch[i]);
+					} catch (final RuntimeException x) {
+						x.printStackTrace();
+						continue;
+					} finally {
+						batch[i] = null;
+					}
+
+					try {
+						request.decodeHeaders();
+					} catch (final RuntimeException x) {
+						x.printStackTrace();
+						reject(request);
+						continue;
+					}
+
+					synchronized (this.lock) {
+						if (this.demand != Long.MAX_VALUE)
+							this.demand--;
+					}
+
+					this.subscriber.onNext(request);
+
+				}
+
+			}
+
+		} catch (final Throwable x) {
+			failure = x;
+		}
+
+		final boolean signal;
+		synchronized (this.lock) {
+			if (failure == null)
+				failure = this.error;
+			// no further signals after the subscriber cancelled
+			signal = (!this.cancelled || failure != null);
+		}
+
+		if (signal && failure != null)
+			this.subscriber.onError(failure);
+		else if (signal)
+			this.subscriber.onComplete();
+
+		try {
+			this.writer.stop();
+		} catch (final InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.handler.setActive(false);
+
+	}
+
+}
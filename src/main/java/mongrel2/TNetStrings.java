@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and parses tnetstrings, the format of the Mongrel2 control port and
+ * of the tnetstring handler protocol. Strings are decoded as UTF-8 strings,
+ * integers as Long, floats as Double, dicts as an ordered Map with string
+ * keys and lists as List.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class TNetStrings {
+
+	private static final int MAX_LENGTH_DIGITS = 9;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Encodes a value, which must be a String, byte array, Number, Boolean,
+	 * null, a Map with string keys or a List of such values.
+	 * 
+	 * @param value
+	 *            the value to encode
+	 * @return the tnetstring
+	 */
+	public static byte[] encode(final Object value) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encode(value, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses a tnetstring.
+	 * 
+	 * @param data
+	 *            the tnetstring
+	 * @return the parsed value
+	 */
+	public static Object parse(final byte[] data) {
+		return parse(data, 0, data.length);
+	}
+
+	/**
+	 * Parses the tnetstring in a region of the given array, which may be
+	 * followed by other data.
+	 * 
+	 * @param data
+	 *            the array containing the tnetstring
+	 * @param offset
+	 *            the start of the tnetstring
+	 * @param limit
+	 *            the end of the region
+	 * @return the parsed value
+	 */
+	public static Object parse(final byte[] data, final int offset, final int limit) {
+		final int[] end = new int[1];
+		return parse(data, offset, limit, end);
+	}
+
+	/**
+	 * Adds the headers of a request sent with the tnetstring protocol to the
+	 * request, without building a map. Lists of values, as sent for repeated
+	 * headers, become multiple header values.
+	 * 
+	 * @param data
+	 *            the raw request
+	 * @param offset
+	 *            the start of the contents of the header dict
+	 * @param length
+	 *            the length of the contents of the header dict
+	 * @param request
+	 *            receives the headers
+	 */
+	static void parseHeaders(final byte[] data, final int offset, final int length, final Request request) {
+
+		final int limit = offset + length;
+		final int[] end = new int[1];
+
+		int p = offset;
+		while (p < limit) {
+			final String name = String.valueOf(parseHeaderString(data, p, limit, end, true));
+			p = addValues(data, end[0], limit, name, request, end);
+		}
+
+	}
+
+	/**
+	 * Adds the value of a single header, a tnetstring or a list of them, to
+	 * the request.
+	 * 
+	 * @param data
+	 *            the raw request
+	 * @param offset
+	 *            the start of the value
+	 * @param length
+	 *            the length of the value
+	 * @param name
+	 *            the name of the header
+	 * @param request
+	 *            receives the header
+	 */
+	static void parseHeaderValues(final byte[] data, final int offset, final int length, final String name,
+			final Request request) {
+		addValues(data, offset, offset + length, name, request, new int[1]);
+	}
+
+	/**
+	 * Locates the values of the given headers in the contents of a header dict
+	 * without decoding anything. Header names are compared case sensitively.
+	 * 
+	 * @param data
+	 *            the raw request
+	 * @param offset
+	 *            the start of the contents of the header dict
+	 * @param length
+	 *            the length of the contents of the header dict
+	 * @param names
+	 *            the names of the headers to find
+	 * @param spans
+	 *            receives the index of the name, the start and the end of
+	 *            each value found
+	 * @return the number of values found, or -1 if there are more than fit
+	 *         into spans
+	 */
+	static int scanHeaders(final byte[] data, final int offset, final int length, final String[] names,
+			final int[] spans) {
+
+		final int limit = offset + length;
+		int count = 0;
+		boolean overflow = false;
+
+		int p = offset;
+		while (p < limit) {
+
+			final int nameColon = findColon(data, p, limit);
+			final int nameEnd = nameColon + 1 + parseLength(data, p, nameColon);
+			if (nameEnd >= limit)
+				throw new IllegalArgumentException("Invalid tnetstring: truncated.");
+
+			final int valueColon = findColon(data, nameEnd + 1, limit);
+			final int valueEnd = valueColon + 1 + parseLength(data, nameEnd + 1, valueColon);
+			if (valueEnd >= limit)
+				throw new IllegalArgumentException("Invalid tnetstring: truncated.");
+
+			final int n = JsonHeaders.indexOf(names, data, nameColon + 1, nameEnd);
+			if (n != -1) {
+				if (count * 3 + 3 > spans.length) {
+					overflow = true;
+				} else {
+					spans[count * 3] = n;
+					spans[count * 3 + 1] = nameEnd + 1;
+					spans[count * 3 + 2] = valueEnd + 1;
+					count++;
+				}
+			}
+
+			p = valueEnd + 1;
+
+		}
+
+		return overflow ? -1 : count;
+
+	}
+
+	/**
+	 * Adds the header value starting at offset, a list or a scalar, and
+	 * returns the position after it.
+	 */
+	private static int addValues(final byte[] data, final int offset, final int limit, final String name,
+			final Request request, final int[] end) {
+
+		final boolean intern = KnownHeaders.isInterned(KnownHeaders.slot(name));
+		final int colon = findColon(data, offset, limit);
+		final int type = colon + 1 + parseLength(data, offset, colon);
+		if (type >= limit)
+			throw new IllegalArgumentException("Invalid tnetstring: truncated.");
+
+		if (data[type] == ']') {
+			int q = colon + 1;
+			while (q < type) {
+				final Object value = parseHeaderString(data, q, type, end, intern);
+				if (value != null)
+					request.addDecodedHeader(name, value.toString());
+				q = end[0];
+			}
+			return type + 1;
+		}
+
+		final Object value = parseHeaderString(data, offset, limit, end, intern);
+		if (value != null)
+			request.addDecodedHeader(name, value.toString());
+		return end[0];
+
+	}
+
+	private static void encode(final Object value, final ByteArrayOutputStream out) {
+
+		if (value == null) {
+			write(out, new byte[0], '~');
+		} else if (value instanceof String) {
+			write(out, ((String) value).getBytes(UTF8), ',');
+		} else if (value instanceof byte[]) {
+			write(out, (byte[]) value, ',');
+		} else if (value instanceof Boolean) {
+			write(out, value.toString().getBytes(UTF8), '!');
+		} else if (value instanceof Float || value instanceof Double) {
+			write(out, value.toString().getBytes(UTF8), '^');
+		} else if (value instanceof Number) {
+			write(out, Long.toString(((Number) value).longValue()).getBytes(UTF8), '#');
+		} else if (value instanceof Map) {
+			final ByteArrayOutputStream items = new ByteArrayOutputStream();
+			for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				encode(entry.getKey().toString(), items);
+				encode(entry.getValue(), items);
+			}
+			write(out, items.toByteArray(), '}');
+		} else if (value instanceof List) {
+			final ByteArrayOutputStream items = new ByteArrayOutputStream();
+			for (final Object item : (List<?>) value)
+				encode(item, items);
+			write(out, items.toByteArray(), ']');
+		} else {
+			throw new IllegalArgumentException("Cannot encode as tnetstring: " + value.getClass().getName());
+		}
+
+	}
+
+	private static int findColon(final byte[] data, final int offset, final int limit) {
+		for (int i = offset; i < limit && i - offset <= MAX_LENGTH_DIGITS; i++)
+			if (data[i] == ':')
+				return i;
+		throw new IllegalArgumentException("Invalid tnetstring: no length prefix.");
+	}
+
+	private static Object parse(final byte[] data, final int offset, final int limit, final int[] end) {
+
+		final int colon = findColon(data, offset, limit);
+		final int length = parseLength(data, offset, colon);
+		final int start = colon + 1;
+		final int type = start + length;
+		if (type >= limit)
+			throw new IllegalArgumentException("Invalid tnetstring: truncated.");
+		end[0] = type + 1;
+
+		switch (data[type]) {
+
+		case ',':
+			return new String(data, start, length, UTF8);
+
+		case '#':
+			return Long.valueOf(new String(data, start, length, UTF8));
+
+		case '^':
+			return Double.valueOf(new String(data, start, length, UTF8));
+
+		case '!':
+			return Boolean.valueOf("true".equals(new String(data, start, length, UTF8)));
+
+		case '~':
+			return null;
+
+		case '}': {
+			final Map<String, Object> map = new LinkedHashMap<String, Object>();
+			int p = start;
+			while (p < type) {
+				final Object key = parse(data, p, type, end);
+				p = end[0];
+				final Object value = parse(data, p, type, end);
+				p = end[0];
+				map.put(String.valueOf(key), value);
+			}
+			end[0] = type + 1;
+			return map;
+		}
+
+		case ']': {
+			final List<Object> list = new ArrayList<Object>();
+			int p = start;
+			while (p < type) {
+				list.add(parse(data, p, type, end));
+				p = end[0];
+			}
+			end[0] = type + 1;
+			return list;
+		}
+
+		default:
+			throw new IllegalArgumentException("Invalid tnetstring type: " + (char) data[type]);
+
+		}
+
+	}
+
+	/**
+	 * Parses a value, interning it if asked to and it is a string.
+	 */
+	private static Object parseHeaderString(final byte[] data, final int offset, final int limit, final int[] end,
+			final boolean intern) {
+		if (intern) {
+			final int colon = findColon(data, offset, limit);
+			final int type = colon + 1 + parseLength(data, offset, colon);
+			if (type < limit && data[type] == ',') {
+				end[0] = type + 1;
+				return Interner.intern(data, colon + 1, type);
+			}
+		}
+		return parse(data, offset, limit, end);
+	}
+
+	/**
+	 * Parses a length prefix of at most nine digits, so it cannot overflow.
+	 */
+	private static int parseLength(final byte[] data, final int offset, final int colon) {
+		if (colon == offset)
+			throw new IllegalArgumentException("Invalid tnetstring: empty length.");
+		if (colon - offset > MAX_LENGTH_DIGITS)
+			throw new IllegalArgumentException("Invalid tnetstring: length too long.");
+		int length = 0;
+		for (int i = offset; i < colon; i++) {
+			final int digit = data[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new IllegalArgumentException("Invalid tnetstring length.");
+			length = length * 10 + digit;
+		}
+		return length;
+	}
+
+	private static void write(final ByteArrayOutputStream out, final byte[] payload, final char type) {
+		final byte[] length = Integer.toString(payload.length).getBytes(UTF8);
+		out.write(length, 0, length.length);
+		out.write(':');
+		out.write(payload, 0, payload.length);
+		out.write(type);
+	}
+
+	private TNetStrings() {
+		// static methods only
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that starts a new thread for every task. Intended to be given to a
+ * {@link Mongrel2Dispatcher} so that each request runs on its own thread while
+ * the dispatcher's I/O thread keeps receiving and serializes the responses.
+ * 
+ * By default virtual threads are used when the JVM supports them (Java 21 and
+ * later), so tens of thousands of requests may block on downstream services
+ * at the same time without a large thread pool. On older JVMs ordinary
+ * platform threads are created instead.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class ThreadPerRequestExecutor implements Executor {
+
+	/**
+	 * Returns a factory for virtual threads if the JVM supports them.
+	 * 
+	 * @return the virtual thread factory, or null if not supported.
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (final Exception x) {
+			return null;
+		}
+	}
+
+	private final AtomicInteger active;
+	private final ThreadFactory factory;
+
+	/**
+	 * Construct an executor using virtual threads where available, otherwise,
+	 * platform threads.
+	 */
+	public ThreadPerRequestExecutor() {
+		this(virtualThreadFactory());
+	}
+
+	/**
+	 * Construct an executor creating its threads with the given factory.
+	 * 
+	 * @param factory
+	 *            the thread factory, null for the default platform thread
+	 *            factory
+	 */
+	public ThreadPerRequestExecutor(final ThreadFactory factory) {
+		this.factory = (factory == null) ? Executors.defaultThreadFactory() : factory;
+		this.active = new AtomicInteger();
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+
+		final Thread thread = this.factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					ThreadPerRequestExecutor.this.active.decrementAndGet();
+				}
+			}
+		});
+
+		this.active.incrementAndGet();
+		try {
+			thread.start();
+		} catch (final Error x) {
+			this.active.decrementAndGet();
+			throw x;
+		}
+
+	}
+
+	/**
+	 * Returns the number of tasks currently running.
+	 * 
+	 * @return number of running tasks
+	 */
+	public int getActiveCount() {
+		return this.active.get();
+	}
+
+}
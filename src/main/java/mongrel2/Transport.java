@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+
+/**
+ * Carries raw Mongrel2 messages between a {@link Mongrel2Handler} and one or
+ * more Mongrel2 servers. {@link ZmqTransport} talks to real servers through
+ * ZeroMQ, {@link LoopbackTransport} stands in for them within the JVM.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public interface Transport {
+
+	/**
+	 * The open channels of an active handler. Receiving and sending must each
+	 * be confined to a single thread at a time.
+	 */
+	public interface Connection {
+
+		/**
+		 * Releases all resources of the connection.
+		 * 
+		 * @param linger
+		 *            milliseconds unsent messages are kept to be delivered,
+		 *            -1 to keep them until delivered
+		 */
+		void close(long linger);
+
+		/**
+		 * Receives the next raw request message from any of the servers.
+		 * 
+		 * @param timeout
+		 *            milliseconds to wait for a message, zero to return
+		 *            immediately or negative to block until one arrives
+		 * @return the raw message or null if none arrived in time
+		 */
+		byte[] receive(long timeout);
+
+		/**
+		 * Sends a raw response message to one of the servers.
+		 * 
+		 * @param server
+		 *            the index of the server's send address
+		 * @param message
+		 *            the encoded response
+		 * @throws IOException
+		 */
+		void send(int server, byte[] message) throws IOException;
+
+	}
+
+	/**
+	 * Socket tuning given to {@link Mongrel2Handler.Builder}. Negative values
+	 * keep the transport's defaults.
+	 */
+	public static final class Options {
+
+		private final long linger;
+		private final long receiveBufferSize;
+		private final long receiveHighWaterMark;
+		private final long reconnectInterval;
+		private final long reconnectIntervalMax;
+		private final long sendBufferSize;
+		private final long sendHighWaterMark;
+
+		Options(final long linger, final long receiveBufferSize, final long receiveHighWaterMark,
+				final long reconnectInterval, final long reconnectIntervalMax, final long sendBufferSize,
+				final long sendHighWaterMark) {
+			this.linger = linger;
+			this.receiveBufferSize = receiveBufferSize;
+			this.receiveHighWaterMark = receiveHighWaterMark;
+			this.reconnectInterval = reconnectInterval;
+			this.reconnectIntervalMax = reconnectIntervalMax;
+			this.sendBufferSize = sendBufferSize;
+			this.sendHighWaterMark = sendHighWaterMark;
+		}
+
+		public long getLinger() {
+			return this.linger;
+		}
+
+		public long getReceiveBufferSize() {
+			return this.receiveBufferSize;
+		}
+
+		public long getReceiveHighWaterMark() {
+			return this.receiveHighWaterMark;
+		}
+
+		public long getReconnectInterval() {
+			return this.reconnectInterval;
+		}
+
+		public long getReconnectIntervalMax() {
+			return this.reconnectIntervalMax;
+		}
+
+		public long getSendBufferSize() {
+			return this.sendBufferSize;
+		}
+
+		public long getSendHighWaterMark() {
+			return this.sendHighWaterMark;
+		}
+
+	}
+
+	/**
+	 * Opens the channels of a handler: one receiving the requests of all
+	 * servers and one per server to send responses to.
+	 * 
+	 * @param senderId
+	 *            the unique identifier of the handler
+	 * @param recvAddrs
+	 *            the send_spec of each server
+	 * @param sendAddrs
+	 *            the recv_spec of each server, in the same order
+	 * @param options
+	 *            the socket tuning of the handler
+	 * @return the open connection
+	 */
+	Connection connect(String senderId, String[] recvAddrs, String[] sendAddrs, Options options);
+
+}
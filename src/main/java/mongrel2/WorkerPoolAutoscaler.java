@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sizes a pool of worker threads to the load on Mongrel2, as reported by its
+ * control port, instead of provisioning threads for the peak. The pool grows
+ * at once to one thread per given number of open connections and shrinks by
+ * half the surplus per interval, always staying between its bounds.
+ * 
+ * <pre>
+ * ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+ * Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, requestHandler, pool);
+ * WorkerPoolAutoscaler autoscaler = new WorkerPoolAutoscaler(control, pool, 4, 64, 10);
+ * autoscaler.start();
+ * </pre>
+ * 
+ * The autoscaler thread takes over the control port client.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class WorkerPoolAutoscaler {
+
+	private static final long DEFAULT_INTERVAL = 5000;
+
+	private Thread autoscalerThread = null;
+	private final ControlPortClient client;
+	private final int connectionsPerThread;
+	private long interval = DEFAULT_INTERVAL;
+	private final int maxThreads;
+	private final int minThreads;
+	private final ThreadPoolExecutor pool;
+	private final AtomicBoolean running;
+	private final Object sleeper;
+
+	/**
+	 * @param client
+	 *            the client of the Mongrel2 control port
+	 * @param pool
+	 *            the worker pool to resize
+	 * @param minThreads
+	 *            the fewest threads the pool shrinks to
+	 * @param maxThreads
+	 *            the most threads the pool grows to
+	 * @param connectionsPerThread
+	 *            the number of open connections one thread serves
+	 */
+	public WorkerPoolAutoscaler(final ControlPortClient client, final ThreadPoolExecutor pool,
+			final int minThreads, final int maxThreads, final int connectionsPerThread) {
+		if (minThreads < 1 || maxThreads < minThreads || connectionsPerThread < 1)
+			throw new IllegalArgumentException();
+		this.client = client;
+		this.pool = pool;
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.connectionsPerThread = connectionsPerThread;
+		this.running = new AtomicBoolean();
+		this.sleeper = new Object();
+	}
+
+	/**
+	 * Returns if the autoscaler thread is running.
+	 * 
+	 * @return true if running, otherwise, false.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Sets the time between two polls of the control port. Defaults to five
+	 * seconds.
+	 * 
+	 * @param interval
+	 * @param unit
+	 */
+	public void setInterval(final long interval, final TimeUnit unit) {
+		this.interval = Math.max(1, unit.toMillis(interval));
+	}
+
+	/**
+	 * Start the autoscaler thread.
+	 */
+	public synchronized void start() {
+
+		if (this.running.getAndSet(true))
+			return;
+
+		this.autoscalerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runAutoscaler();
+			}
+		}, "mongrel2-autoscaler");
+		this.autoscalerThread.setDaemon(true);
+		this.autoscalerThread.start();
+
+	}
+
+	/**
+	 * Stop the autoscaler thread, leaving the pool at its current size.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+
+		if (!this.running.getAndSet(false))
+			return;
+
+		synchronized (this.sleeper) {
+			this.sleeper.notifyAll();
+		}
+		this.autoscalerThread.join();
+		this.autoscalerThread = null;
+
+	}
+
+	/**
+	 * Resizes the pool for the given number of open connections.
+	 * 
+	 * @return the new size of the pool
+	 */
+	int resize(final int connections) {
+
+		final int current = this.pool.getCorePoolSize();
+		int target = (connections + this.connectionsPerThread - 1) / this.connectionsPerThread;
+		target = Math.max(this.minThreads, Math.min(this.maxThreads, target));
+
+		// shrink gradually so that a short lull does not strand the next burst
+		if (target < current)
+			target = Math.max(target, current - Math.max(1, (current - target) / 2));
+
+		if (target > this.pool.getMaximumPoolSize()) {
+			this.pool.setMaximumPoolSize(target);
+			this.pool.setCorePoolSize(target);
+		} else {
+			this.pool.setCorePoolSize(target);
+			this.pool.setMaximumPoolSize(target);
+		}
+
+		return target;
+
+	}
+
+	private void runAutoscaler() {
+		while (this.running.get()) {
+			try {
+				resize(this.client.getConnectionCount());
+			} catch (final IOException x) {
+				x.printStackTrace();
+			}
+			synchronized (this.sleeper) {
+				try {
+					if (this.running.get())
+						this.sleeper.wait(this.interval);
+				} catch (final InterruptedException x) {
+					return;
+				}
+			}
+		}
+	}
+
+}
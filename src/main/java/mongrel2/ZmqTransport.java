@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Karl Ostendorf
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mongrel2;
+
+import java.io.IOException;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Talks to Mongrel2 through ZeroMQ: a PULL socket connected to every server
+ * receives requests and one PUB socket per server sends responses. Builds
+ * against the jzmq bindings by default or against the pure Java jeromq
+ * library, which has the same API, with the jeromq Maven profile.
+ * 
+ * @author Karl Ostendorf
+ * 
+ */
+public class ZmqTransport implements Transport {
+
+	/**
+	 * The sockets of one active handler.
+	 */
+	static class ZmqConnection implements Connection {
+
+		private final ZMQ.Context context;
+		private final ZMQ.Poller poller;
+		private final ZMQ.Socket requests;
+		private final ZMQ.Socket[] responses;
+
+		ZmqConnection(final ZMQ.Context context, final ZMQ.Socket requests, final ZMQ.Socket[] responses) {
+			this.context = context;
+			this.requests = requests;
+			this.responses = responses;
+			this.poller = context.poller(1);
+			this.poller.register(requests, ZMQ.Poller.POLLIN);
+		}
+
+		@Override
+		public void close(final long linger) {
+			this.requests.setLinger(0);
+			this.requests.close();
+			for (final ZMQ.Socket socket : this.responses) {
+				socket.setLinger(linger);
+				socket.close();
+			}
+			// Terminating the context causes apps to hang sometimes.
+			// Not terminating explicitly will cause the context to terminate
+			// when the object is garbage collected.
+			// this.context.term();
+		}
+
+		@Override
+		public byte[] receive(final long timeout) {
+			if (timeout < 0)
+				return this.requests.recv(0);
+			if (timeout > 0 && this.poller.poll(timeout) <= 0)
+				return null;
+			return this.requests.recv(ZMQ.NOBLOCK);
+		}
+
+		@Override
+		public void send(final int server, final byte[] message) throws IOException {
+			this.responses[server].send(message, 0);
+		}
+
+		ZMQ.Context getContext() {
+			return this.context;
+		}
+
+		ZMQ.Socket getRequestSocket() {
+			return this.requests;
+		}
+
+	}
+
+	static void applyOptions(final ZMQ.Socket socket, final long linger, final long highWaterMark,
+			final long reconnectInterval, final long reconnectIntervalMax) {
+		socket.setLinger(linger);
+		if (highWaterMark >= 0)
+			socket.setHWM(highWaterMark);
+		if (reconnectInterval >= 0)
+			socket.setReconnectIVL(reconnectInterval);
+		if (reconnectIntervalMax >= 0)
+			socket.setReconnectIVLMax(reconnectIntervalMax);
+	}
+
+	private final int ioThreads;
+	private final ZMQ.Context sharedContext;
+
+	/**
+	 * Each connection gets a private context with a single I/O thread.
+	 */
+	public ZmqTransport() {
+		this(1);
+	}
+
+	/**
+	 * Each connection gets a private context.
+	 * 
+	 * @param ioThreads
+	 *            the number of I/O threads of each private context
+	 */
+	public ZmqTransport(final int ioThreads) {
+		if (ioThreads < 1)
+			throw new IllegalArgumentException();
+		this.ioThreads = ioThreads;
+		this.sharedContext = null;
+	}
+
+	/**
+	 * All connections share the given context, which is not terminated by the
+	 * transport.
+	 * 
+	 * @param context
+	 *            the shared ZeroMQ context
+	 */
+	public ZmqTransport(final ZMQ.Context context) {
+		if (context == null)
+			throw new IllegalArgumentException();
+		this.ioThreads = 0;
+		this.sharedContext = context;
+	}
+
+	@Override
+	public Connection connect(final String senderId, final String[] recvAddrs, final String[] sendAddrs,
+			final Options options) {
+
+		final ZMQ.Context context = (this.sharedContext != null) ? this.sharedContext : ZMQ
+				.context(this.ioThreads);
+
+		final ZMQ.Socket requests = context.socket(ZMQ.PULL);
+		applyOptions(requests, options.getLinger(), options.getReceiveHighWaterMark(),
+				options.getReconnectInterval(), options.getReconnectIntervalMax());
+		if (options.getReceiveBufferSize() >= 0)
+			requests.setReceiveBufferSize(options.getReceiveBufferSize());
+
+		final ZMQ.Socket[] responses = new ZMQ.Socket[sendAddrs.length];
+		for (int i = 0; i < responses.length; i++) {
+			responses[i] = context.socket(ZMQ.PUB);
+			responses[i].setIdentity(senderId.getBytes());
+			applyOptions(responses[i], options.getLinger(), options.getSendHighWaterMark(),
+					options.getReconnectInterval(), options.getReconnectIntervalMax());
+			if (options.getSendBufferSize() >= 0)
+				responses[i].setSendBufferSize(options.getSendBufferSize());
+		}
+
+		// one pull socket fair-queues the requests of all servers
+		for (final String recvAddr : recvAddrs)
+			requests.connect(recvAddr);
+		for (int i = 0; i < responses.length; i++)
+			responses[i].connect(sendAddrs[i]);
+
+		return new ZmqConnection(context, requests, responses);
+
+	}
+
+}
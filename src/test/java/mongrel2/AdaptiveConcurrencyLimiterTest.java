@@ -0,0 +1,51 @@
+package mongrel2;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private static void saturate(final AdaptiveConcurrencyLimiter limiter, final long rtt, final int rounds) {
+		for (int r = 0; r < rounds; r++) {
+			final int admitted = limiter.getLimit();
+			for (int i = 0; i < admitted; i++)
+				Assert.assertTrue(limiter.tryAcquire());
+			for (int i = 0; i < admitted; i++)
+				limiter.release(rtt);
+		}
+	}
+
+	@Test
+	public void testAdaptsToLatency() throws Exception {
+
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+
+		saturate(limiter, FAST, 20);
+		final int grown = limiter.getLimit();
+		Assert.assertTrue(grown > 10);
+
+		saturate(limiter, SLOW, 5);
+		Assert.assertTrue(limiter.getLimit() < grown);
+
+		Assert.assertEquals(0, limiter.getInFlight());
+
+	}
+
+	@Test
+	public void testRejectsAboveLimit() throws Exception {
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertFalse(limiter.tryAcquire());
+		limiter.release();
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertEquals(2, limiter.getInFlight());
+	}
+
+}
@@ -0,0 +1,89 @@
+package mongrel2;
+
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class AsyncResponseWriterTest {
+
+	private static HttpRequest request(final String id) {
+		final HttpRequest req = new HttpRequest();
+		req.setSenderAddr("sender");
+		req.setRequestId(id);
+		return req;
+	}
+
+	private static HttpResponse response() {
+		final HttpResponse rsp = new HttpResponse();
+		rsp.setStatus(HttpStatus.OK);
+		return rsp;
+	}
+
+	@Test
+	public void testDrop() throws Exception {
+
+		// writer not started, so the queue fills up
+		final AsyncResponseWriter writer = new AsyncResponseWriter(null, 2, AsyncResponseWriter.Backpressure.DROP);
+		for (int i = 0; i < 5; i++)
+			writer.sendResponse(response(), request(Integer.toString(i)));
+
+		Assert.assertEquals(2, writer.getQueueDepth());
+		Assert.assertEquals(3, writer.getDroppedCount());
+
+	}
+
+	@Test
+	public void testFail() throws Exception {
+
+		final AsyncResponseWriter writer = new AsyncResponseWriter(null, 1, AsyncResponseWriter.Backpressure.FAIL);
+		writer.sendResponse(response(), request("1"));
+
+		try {
+			writer.sendResponse(response(), request("2"));
+			Assert.fail("queue should be full");
+		} catch (final IOException x) {
+			// expected
+		}
+
+		Assert.assertEquals(1, writer.getQueueDepth());
+
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2("tcp://127.0.0.1:56108", "tcp://127.0.0.1:56109");
+		final Mongrel2Handler handler = new Mongrel2Handler("test-sender", "tcp://127.0.0.1:56109",
+				"tcp://127.0.0.1:56108");
+		handler.setActive(true);
+		final AsyncResponseWriter writer = new AsyncResponseWriter(handler, 16);
+		writer.start();
+		FakeMongrel2.awaitConnections();
+		mongrel2.awaitPublisher(writer);
+
+		try {
+
+			// the request is reused at once, as a handler's request buffer would be
+			final HttpRequest request = request("0");
+			for (int i = 0; i < 10; i++) {
+				request.setRequestId(Integer.toString(i));
+				writer.sendResponse(response(), request);
+			}
+
+			for (int i = 0; i < 10; i++) {
+				final String rsp = mongrel2.receive(5000);
+				Assert.assertNotNull(rsp);
+				Assert.assertTrue(rsp, rsp.startsWith("sender 1:" + i + ", HTTP/1.1 200 OK"));
+			}
+
+		} finally {
+			writer.stop();
+			handler.setActive(false);
+			mongrel2.close();
+		}
+
+	}
+
+}
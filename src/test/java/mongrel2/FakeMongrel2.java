@@ -0,0 +1,134 @@
+package mongrel2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Plays the part of the Mongrel2 server in tests: pushes requests to handlers
+ * and subscribes to their responses.
+ */
+class FakeMongrel2 {
+
+	/**
+	 * Waits for handlers to connect and their publishers to receive our
+	 * subscription, otherwise, early responses are silently dropped.
+	 */
+	static void awaitConnections() throws InterruptedException {
+		Thread.sleep(1000);
+	}
+
+	static byte[] getResourceAsByteArray(final String resource) throws IOException {
+
+		int len = 0;
+		final byte[] buf = new byte[1024];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final InputStream in = FakeMongrel2.class.getResourceAsStream(resource);
+		while ((len = in.read(buf)) > -1)
+			out.write(buf, 0, len);
+		in.close();
+		out.close();
+
+		return out.toByteArray();
+
+	}
+
+	private final ZMQ.Context context;
+	private final ZMQ.Poller poller;
+	private final ZMQ.Socket[] push;
+	private final ZMQ.Socket sub;
+
+	/**
+	 * @param sendAddr
+	 *            the address on which handlers publish responses
+	 * @param recvAddrs
+	 *            the addresses from which handlers pull requests
+	 */
+	FakeMongrel2(final String sendAddr, final String... recvAddrs) {
+		this.context = ZMQ.context(1);
+		this.push = new ZMQ.Socket[recvAddrs.length];
+		for (int i = 0; i < recvAddrs.length; i++) {
+			this.push[i] = this.context.socket(ZMQ.PUSH);
+			this.push[i].setLinger(0);
+			this.push[i].bind(recvAddrs[i]);
+		}
+		this.sub = this.context.socket(ZMQ.SUB);
+		this.sub.setLinger(0);
+		this.sub.subscribe(new byte[0]);
+		this.sub.bind(sendAddr);
+		this.poller = this.context.poller(1);
+		this.poller.register(this.sub, ZMQ.Poller.POLLIN);
+	}
+
+	/**
+	 * Sends probe responses through the responder until one arrives. A
+	 * publisher that has not yet processed our subscription drops messages,
+	 * which is only noticed on its first send.
+	 */
+	void awaitPublisher(final Responder responder) throws Exception {
+
+		final HttpRequest probe = new HttpRequest();
+		probe.setSenderAddr("probe");
+		probe.setRequestId("0");
+
+		for (int i = 0; i < 50; i++) {
+			final HttpResponse rsp = new HttpResponse();
+			rsp.setStatus(HttpStatus.NoContent);
+			responder.sendResponse(rsp, probe);
+			if (receive(100) != null) {
+				while (receive(100) != null)
+					; // discard later probes
+				return;
+			}
+		}
+
+		throw new IllegalStateException("Publisher not connected.");
+
+	}
+
+	void close() {
+		for (final ZMQ.Socket s : this.push)
+			s.close();
+		this.sub.close();
+		this.context.term();
+	}
+
+	/**
+	 * Returns the next response, or null if none arrives within the timeout.
+	 */
+	String receive(final long timeout) throws IOException {
+		if (this.poller.poll(timeout) <= 0)
+			return null;
+		return new String(this.sub.recv(0), "US-ASCII");
+	}
+
+	/**
+	 * Sends the request and returns its response, resending it if the
+	 * response is lost because the handler's publisher has not yet processed
+	 * our subscription.
+	 */
+	String request(final int index, final byte[] request) throws IOException {
+		for (int i = 0; i < 5; i++) {
+			send(index, request);
+			final String response = receive(1000);
+			if (response != null)
+				return response;
+		}
+		return null;
+	}
+
+	String request(final byte[] request) throws IOException {
+		return request(0, request);
+	}
+
+	void send(final int index, final byte[] request) {
+		this.push[index].send(request, 0);
+	}
+
+	void send(final byte[] request) {
+		send(0, request);
+	}
+
+}
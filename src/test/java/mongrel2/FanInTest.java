@@ -0,0 +1,58 @@
+package mongrel2;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FanInTest {
+
+	private static final String UUID_A = "54c6755b-9628-40a4-9a2d-cc82a816345e";
+	private static final String UUID_B = "9f21a947-7916-4317-ab4d-fe3c76b140b0";
+
+	@Test
+	public void testResponsesRoutedToOriginatingServer() throws Exception {
+
+		final FakeMongrel2 serverA = new FakeMongrel2("tcp://127.0.0.1:56116", "tcp://127.0.0.1:56117");
+		final FakeMongrel2 serverB = new FakeMongrel2("tcp://127.0.0.1:56118", "tcp://127.0.0.1:56119");
+
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender")
+				.server(UUID_A, "tcp://127.0.0.1:56117", "tcp://127.0.0.1:56116")
+				.server(UUID_B, "tcp://127.0.0.1:56119", "tcp://127.0.0.1:56118").build();
+
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				rsp.setContent(request.getSenderAddr());
+				responder.sendResponse(rsp, request);
+			}
+		}, 1);
+		dispatcher.start();
+		FakeMongrel2.awaitConnections();
+
+		try {
+
+			final byte[] requestA = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			final byte[] requestB = new String(requestA, "UTF-8").replace(UUID_A, UUID_B).getBytes("UTF-8");
+
+			final String responseA = serverA.request(requestA);
+			Assert.assertNotNull(responseA);
+			Assert.assertTrue(responseA.startsWith(UUID_A + " "));
+
+			final String responseB = serverB.request(requestB);
+			Assert.assertNotNull(responseB);
+			Assert.assertTrue(responseB.startsWith(UUID_B + " "));
+
+			// nothing is published to the other server
+			Assert.assertNull(serverA.receive(250));
+
+		} finally {
+			dispatcher.stop();
+			serverA.close();
+			serverB.close();
+		}
+
+	}
+
+}
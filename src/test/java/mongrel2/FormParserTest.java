@@ -0,0 +1,113 @@
+package mongrel2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FormParserTest {
+
+	@Test
+	public void testMultipart() throws Exception {
+
+		final String body = "preamble\r\n--XyZ\r\n" //
+				+ "Content-Disposition: form-data; name=\"title\"\r\n\r\n" //
+				+ "caf\u00e9\r\n" //
+				+ "--XyZ\r\n" //
+				+ "Content-Disposition: form-data; name=\"upload\"; filename=\"a;b.txt\"\r\n" //
+				+ "Content-Type: text/plain\r\n\r\n" //
+				+ "line 1\r\nline 2\r\n" //
+				+ "--XyZ--\r\n";
+		final HttpRequest req = request("/upload?x=1", "multipart/form-data; boundary=\"XyZ\"", body);
+
+		Assert.assertEquals("1", req.getParameter("x"));
+		Assert.assertEquals("caf\u00e9", req.getParameter("title"));
+		Assert.assertNull(req.getParameter("upload"));
+		Assert.assertEquals(2, req.getParts().size());
+
+		final Part file = req.getPart("upload");
+		Assert.assertEquals("a;b.txt", file.getFileName());
+		Assert.assertEquals("text/plain", file.getContentType());
+		Assert.assertEquals(14, file.getSize());
+
+		final ByteBuffer content = file.getContent();
+		Assert.assertTrue(content.isReadOnly());
+		final byte[] bytes = new byte[content.remaining()];
+		content.get(bytes);
+		Assert.assertEquals("line 1\r\nline 2", new String(bytes, "US-ASCII"));
+
+		final InputStream in = file.getInputStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1)
+			out.write(b);
+		Assert.assertEquals("line 1\r\nline 2", out.toString("US-ASCII"));
+
+	}
+
+	@Test
+	public void testMultipartMalformed() throws Exception {
+		final HttpRequest req = request("/upload?x=1", "multipart/form-data; boundary=XyZ",
+				"--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n--XyZ\r\nno end");
+		Assert.assertEquals("1", req.getParameter("x"));
+		Assert.assertNull(req.getParameter("a"));
+		Assert.assertTrue(req.getParts().isEmpty());
+
+		final HttpRequest noBoundary = request("/upload", "multipart/form-data", "--XyZ--\r\n");
+		Assert.assertNull(noBoundary.getParameter("a"));
+		Assert.assertTrue(noBoundary.getParts().isEmpty());
+	}
+
+	@Test
+	public void testUrlEncoded() throws Exception {
+
+		final HttpRequest req = request("/form?a=0", "application/x-www-form-urlencoded; charset=UTF-8",
+				"a=1&b=x+y%21&flag&c=caf%C3%A9");
+
+		Assert.assertEquals(2, req.getParameterValues("a").length);
+		Assert.assertEquals("0", req.getParameterValues("a")[0]);
+		Assert.assertEquals("1", req.getParameterValues("a")[1]);
+		Assert.assertEquals("x y!", req.getParameter("b"));
+		Assert.assertEquals("", req.getParameter("flag"));
+		Assert.assertEquals("caf\u00e9", req.getParameter("c"));
+		Assert.assertTrue(req.getParts().isEmpty());
+
+		req.setContent("a=9".getBytes("US-ASCII"));
+		Assert.assertEquals(2, req.getParameterValues("a").length);
+		Assert.assertEquals("9", req.getParameterValues("a")[1]);
+		Assert.assertNull(req.getParameter("b"));
+
+		// fields with an invalid escape sequence are skipped, as in the query string
+		req.setContent("b=%zz&c=2&d=%4".getBytes("US-ASCII"));
+		Assert.assertNull(req.getParameter("b"));
+		Assert.assertEquals("2", req.getParameter("c"));
+		Assert.assertNull(req.getParameter("d"));
+
+	}
+
+	private HttpRequest request(final String uri, final String contentType, final String body) throws Exception {
+
+		final int q = uri.indexOf('?');
+		final String path = (q == -1) ? uri : uri.substring(0, q);
+		final String query = (q == -1) ? "" : ",\"QUERY\":\"" + uri.substring(q + 1) + "\"";
+		final byte[] content = body.getBytes("UTF-8");
+		final String headers = "{\"PATH\":\"" + path + "\",\"host\":\"localhost:6767\",\"METHOD\":\"POST\","
+				+ "\"VERSION\":\"HTTP/1.1\",\"URI\":\"" + uri + "\",\"PATTERN\":\"/\",\"content-type\":\""
+				+ contentType.replace("\"", "\\\"") + "\",\"content-length\":\"" + content.length + "\"" + query + "}";
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("sender 1 " + path + " " + headers.getBytes("UTF-8").length + ":" + headers + ","
+				+ content.length + ":").getBytes("UTF-8"));
+		out.write(content);
+		out.write(',');
+
+		final HttpRequest req = new HttpRequest();
+		req.parse(out.toByteArray());
+		return req;
+
+	}
+
+}
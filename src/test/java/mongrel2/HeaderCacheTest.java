@@ -0,0 +1,118 @@
+package mongrel2;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class HeaderCacheTest {
+
+	@Test
+	public void testJson() throws Exception {
+
+		final HeaderCache cache = new HeaderCache(10);
+
+		final HttpRequest first = new HttpRequest();
+		first.parse(json("/a", "x=1"), cache);
+		final HttpRequest second = new HttpRequest();
+		second.parse(json("/search/for", "q=%41"), cache);
+
+		// headers are only decoded when first read
+		Assert.assertEquals(0, cache.getMisses());
+
+		Assert.assertEquals("/a", first.getRequestURI());
+		Assert.assertEquals("1", first.getParameter("x"));
+		Assert.assertEquals("/search/for", second.getRequestURI());
+		Assert.assertEquals("/search/for?q=%41", second.getHeader("URI"));
+		Assert.assertEquals("A", second.getParameter("q"));
+		Assert.assertEquals("localhost", second.getServerName());
+		Assert.assertEquals("b=2", second.getHeaderValues("Cookie")[1]);
+
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.size());
+
+		int names = 0;
+		for (@SuppressWarnings("unused")
+		final String name : second.getHeaderNames())
+			names++;
+		Assert.assertEquals(8, names);
+
+		// headers set on one request are not seen by the others
+		second.addHeader("Cookie", "c=3");
+		Assert.assertEquals(3, second.getHeaderValues("cookie").length);
+		final HttpRequest third = new HttpRequest();
+		third.parse(json("/", ""), cache);
+		Assert.assertEquals(2, third.getHeaderValues("cookie").length);
+		Assert.assertEquals(2, cache.getHits());
+
+	}
+
+	@Test
+	public void testMiss() throws Exception {
+
+		final HeaderCache cache = new HeaderCache(1);
+
+		final HttpRequest req = new HttpRequest();
+		req.parse(json("/", ""), cache);
+		Assert.assertEquals("localhost", req.getServerName());
+		req.parse(message("{\"PATH\":\"/\",\"host\":\"example.com:80\",\"METHOD\":\"GET\",\"VERSION\":\"HTTP/1.1\","
+				+ "\"PATTERN\":\"/\"}", ','), cache);
+
+		Assert.assertEquals("example.com", req.getServerName());
+		Assert.assertNull(req.getHeader("cookie"));
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(1, cache.size());
+
+	}
+
+	@Test
+	public void testTNetString() throws Exception {
+
+		final HeaderCache cache = new HeaderCache(10);
+
+		final HttpRequest req = new HttpRequest();
+		req.parse(tnetstring("/a", "x=1"), cache);
+		Assert.assertEquals("/a", req.getRequestURI());
+		req.parse(tnetstring("/longer/path", "x=2&y=3"), cache);
+
+		Assert.assertEquals("/longer/path", req.getRequestURI());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals("2", req.getParameter("x"));
+		Assert.assertEquals("3", req.getParameter("y"));
+		Assert.assertEquals(2, req.getHeaderValues("cookie").length);
+
+	}
+
+	private byte[] json(final String path, final String query) throws Exception {
+		final String uri = (query.length() == 0) ? path : path + "?" + query;
+		return message("{\"PATH\":\"" + path + "\",\"host\":\"localhost:6767\",\"cookie\":[\"a=1\",\"b=2\"],"
+				+ "\"METHOD\":\"GET\",\"VERSION\":\"HTTP/1.1\",\"URI\":\"" + uri + "\",\"QUERY\":\"" + query
+				+ "\",\"PATTERN\":\"/\"}", ',');
+	}
+
+	private byte[] message(final String headers, final char type) throws Exception {
+		final byte[] h = headers.getBytes("UTF-8");
+		return ("sender 1 / " + h.length + ":" + headers + type + "0:,").getBytes("UTF-8");
+	}
+
+	private byte[] tnetstring(final String path, final String query) throws Exception {
+		final Map<String, Object> headers = new LinkedHashMap<String, Object>();
+		headers.put("PATH", path);
+		headers.put("host", "localhost:6767");
+		headers.put("cookie", Arrays.asList("a=1", "b=2"));
+		headers.put("METHOD", "GET");
+		headers.put("VERSION", "HTTP/1.1");
+		headers.put("URI", path + "?" + query);
+		headers.put("QUERY", query);
+		headers.put("PATTERN", "/");
+		final String dict = new String(TNetStrings.encode(headers), "UTF-8");
+		final int colon = dict.indexOf(':');
+		return message(dict.substring(colon + 1, dict.length() - 1), '}');
+	}
+
+}
@@ -1,5 +1,9 @@
 package mongrel2;
 
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
 import org.junit.Test;
 
 public class HttpHandlerTest {
@@ -11,4 +15,83 @@ public class HttpHandlerTest {
 		handler.setActive(false);
 	}
 
+	@Test
+	public void testBuilder() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2("tcp://127.0.0.1:56114", "tcp://127.0.0.1:56115");
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender")
+				.recvAddr("tcp://127.0.0.1:56115").sendAddr("tcp://127.0.0.1:56114").ioThreads(2)
+				.receiveHighWaterMark(100).sendHighWaterMark(100).receiveBufferSize(65536).sendBufferSize(65536)
+				.reconnectInterval(50).reconnectIntervalMax(1000).linger(100).build();
+		Assert.assertEquals("test-sender", handler.getSenderId());
+		handler.setActive(true);
+
+		try {
+			mongrel2.send(FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+			final HttpRequest req = new HttpRequest();
+			Assert.assertTrue(handler.takeRequest(req, 5, TimeUnit.SECONDS));
+			Assert.assertEquals("57", req.getRequestId());
+		} finally {
+			handler.setActive(false);
+			mongrel2.close();
+		}
+
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testBuilderRequiresAddresses() throws Exception {
+		new Mongrel2Handler.Builder("test-sender").recvIpc("/tmp/requests").build();
+	}
+
+	@Test
+	public void testTakeRequests() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2("tcp://127.0.0.1:56110", "tcp://127.0.0.1:56111");
+		final Mongrel2Handler handler = new Mongrel2Handler("test-sender", "tcp://127.0.0.1:56111",
+				"tcp://127.0.0.1:56110");
+		handler.setActive(true);
+
+		try {
+
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			for (int i = 0; i < 3; i++)
+				mongrel2.send(raw);
+
+			final HttpRequest[] reqs = new HttpRequest[8];
+			for (int i = 0; i < reqs.length; i++)
+				reqs[i] = new HttpRequest();
+
+			int count = 0;
+			while (count < 3) {
+				final HttpRequest[] rest = new HttpRequest[reqs.length - count];
+				System.arraycopy(reqs, count, rest, 0, rest.length);
+				final int n = handler.takeRequests(rest, 5, TimeUnit.SECONDS);
+				Assert.assertTrue(n > 0);
+				count += n;
+			}
+
+			Assert.assertEquals(3, count);
+			Assert.assertEquals("57", reqs[2].getRequestId());
+			Assert.assertNull(reqs[3].getRequestId());
+			Assert.assertEquals(0, handler.takeRequests(reqs, 0, TimeUnit.MILLISECONDS));
+
+		} finally {
+			handler.setActive(false);
+			mongrel2.close();
+		}
+
+	}
+
+	@Test
+	public void testTakeRequestTimeout() throws Exception {
+		final Mongrel2Handler handler = new Mongrel2Handler("test-sender", "ipc://requests", "ipc://responses");
+		handler.setActive(true);
+		try {
+			Assert.assertFalse(handler.takeRequest(new HttpRequest(), 0, TimeUnit.MILLISECONDS));
+			Assert.assertFalse(handler.takeRequest(new HttpRequest(), 10, TimeUnit.MILLISECONDS));
+		} finally {
+			handler.setActive(false);
+		}
+	}
+
 }
@@ -3,6 +3,9 @@ package mongrel2;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import junit.framework.Assert;
 
@@ -110,6 +113,29 @@ public class HttpRequestTest {
 
 	}
 
+	@Test
+	public void testLazyParse() throws Exception {
+
+		final byte[] raw = "sender 7 /upload 17:{\"PATH\":\"/upload\",5:hello,".getBytes("US-ASCII");
+		final Request req = new Request();
+		req.parse(raw);
+
+		// the broken header block is only noticed once a header is read
+		Assert.assertEquals("sender", req.getSenderAddr());
+		Assert.assertEquals("7", req.getRequestId());
+		Assert.assertEquals(5, req.getContentBuffer().remaining());
+		Assert.assertEquals('h', req.getContentBuffer().get());
+		Assert.assertTrue(req.getContentBuffer().isReadOnly());
+		Assert.assertEquals("hello", new String(req.getContent(), "US-ASCII"));
+		try {
+			req.getHeader("PATH");
+			Assert.fail("malformed headers were decoded");
+		} catch (final RuntimeException x) {
+			// expected
+		}
+
+	}
+
 	@Test
 	public void testParse() throws Exception {
 
@@ -208,6 +234,103 @@ public class HttpRequestTest {
 
 	}
 
+	@Test
+	public void testParseTNetString() throws Exception {
+
+		final Map<String, Object> headers = new LinkedHashMap<String, Object>();
+		headers.put("PATH", "/search/for/a/string");
+		headers.put("host", "localhost:6767");
+		headers.put("cookie", Arrays.asList("a=1", "b=2"));
+		headers.put("METHOD", "POST");
+		headers.put("VERSION", "HTTP/1.1");
+		headers.put("URI", "/search/for/a/string?p1=33");
+		headers.put("QUERY", "p1=33");
+		headers.put("PATTERN", "/search/");
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("54c6755b-9628-40a4-9a2d-cc82a816345e 57 /search/for/a/string ".getBytes("US-ASCII"));
+		out.write(TNetStrings.encode(headers));
+		out.write("4:body,".getBytes("US-ASCII"));
+
+		final HttpRequest req = new HttpRequest();
+		req.parse(out.toByteArray());
+
+		Assert.assertEquals("57", req.getRequestId());
+		Assert.assertEquals("POST", req.getMethod());
+		Assert.assertEquals("http://localhost:6767/search/for/a/string", req.getRequestURL().toString());
+		Assert.assertEquals("for/a/string", req.getPathInfo());
+		Assert.assertEquals("33", req.getParameter("p1"));
+		Assert.assertEquals(2, req.getHeaderValues("Cookie").length);
+		Assert.assertEquals("b=2", req.getHeaderValues("Cookie")[1]);
+		Assert.assertEquals("body", new String(req.getContent(), "US-ASCII"));
+
+	}
+
+	@Test
+	public void testParseTwice() throws Exception {
+
+		final byte[] mongrel2RequestMessage = getResourceAsByteArray("test-request.txt");
+		final HttpRequest req = new HttpRequest();
+		req.parse(mongrel2RequestMessage);
+		req.parse(mongrel2RequestMessage);
+
+		// nothing accumulates when a request object is reused
+		Assert.assertEquals(1, req.getHeaderValues("host").length);
+		Assert.assertEquals(2, req.getParameterValues("p1").length);
+		Assert.assertEquals("http://localhost:6767/search/for/a/string", req.getRequestURL().toString());
+
+	}
+
+	@Test
+	public void testQueryParameters() throws Exception {
+
+		final HttpRequest req = new HttpRequest();
+		req.setHeader("QUERY", "flag&&a=1&b=&c=x+y%20z&d=caf%C3%A9&a=2&=e");
+
+		Assert.assertEquals("", req.getParameter("flag"));
+		Assert.assertEquals(2, req.getParameterValues("a").length);
+		Assert.assertEquals("2", req.getParameterValues("a")[1]);
+		Assert.assertEquals("", req.getParameter("b"));
+		Assert.assertEquals("x y z", req.getParameter("c"));
+		Assert.assertEquals("caf\u00e9", req.getParameter("d"));
+		Assert.assertEquals("e", req.getParameter(""));
+
+		// a header set later replaces the parameters already decoded
+		req.setHeader("QUERY", "a=%4&b=%z&c=1");
+		Assert.assertNull(req.getParameter("a"));
+		Assert.assertNull(req.getParameter("b"));
+		Assert.assertEquals("1", req.getParameter("c"));
+		Assert.assertNull(req.getParameter("flag"));
+
+		// parameters set explicitly are kept and replace decoded ones
+		req.setParameter("p", "set");
+		req.addParameter("c", "added");
+		req.setHeader("QUERY", "c=3&p=x&q=4");
+		Assert.assertEquals("set", req.getParameter("p"));
+		Assert.assertEquals(2, req.getParameterValues("c").length);
+		Assert.assertEquals("added", req.getParameterValues("c")[1]);
+		Assert.assertEquals("4", req.getParameter("q"));
+
+	}
+
+	@Test
+	public void testServerWithoutPort() throws Exception {
+
+		final HttpRequest req = new HttpRequest();
+		req.setHeader("host", "example.com");
+		req.setHeader("URL_SCHEME", "https");
+		req.setHeader("PATH", "/app/x");
+		req.setHeader("PATTERN", "/app/(.*)");
+
+		Assert.assertEquals("example.com", req.getServerName());
+		Assert.assertEquals(443, req.getServerPort());
+		Assert.assertTrue(req.isSecure());
+		Assert.assertEquals("/app/", req.getServletPath());
+		Assert.assertEquals("x", req.getPathInfo());
+		Assert.assertEquals("https://example.com/app/x", req.getRequestURL().toString());
+
+	}
+
 	private byte[] getResourceAsByteArray(final String resource) throws IOException {
 
 		int len = 0;
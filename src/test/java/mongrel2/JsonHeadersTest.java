@@ -0,0 +1,54 @@
+package mongrel2;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class JsonHeadersTest {
+
+	@Test
+	public void testEmpty() throws Exception {
+		final Request req = parse(" { } ");
+		Assert.assertFalse(req.getHeaderNames().iterator().hasNext());
+	}
+
+	@Test
+	public void testEscapes() throws Exception {
+		final Request req = parse("{\"x-quote\":\"say \\\"hi\\\"\\\\\\/\",\"x-unicode\":\"caf\\u00e9 \u00fcber\"}");
+		Assert.assertEquals("say \"hi\"\\/", req.getHeader("X-Quote"));
+		Assert.assertEquals("caf\u00e9 \u00fcber", req.getHeader("x-unicode"));
+	}
+
+	@Test
+	public void testHeaders() throws Exception {
+		final Request req = parse("{\"PATH\":\"/\",\"host\":\"localhost:6767\",\n \"x-n\" : 42,"
+				+ "\"cookie\":[\"a=1\",\"b=2\"]}");
+		Assert.assertEquals("/", req.getHeader("PATH"));
+		Assert.assertEquals("localhost:6767", req.getHeader("HOST"));
+		Assert.assertEquals("42", req.getHeader("x-n"));
+		Assert.assertEquals(2, req.getHeaderValues("cookie").length);
+		Assert.assertEquals("b=2", req.getHeaderValues("cookie")[1]);
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		final String[] malformed = { "", "{", "{\"a\":}", "{\"a\":\"b\"", "{\"a\":\"b\"}x", "{\"a\" \"b\"}",
+				"{\"a\":\"\\q\"}", "{\"a\":\"\\u12\"}" };
+		for (final String json : malformed) {
+			try {
+				parse(json);
+				Assert.fail("parsed " + json);
+			} catch (final IllegalArgumentException x) {
+				// expected
+			}
+		}
+	}
+
+	private Request parse(final String json) throws Exception {
+		final byte[] data = ("--" + json + "--").getBytes("UTF-8");
+		final Request req = new Request();
+		JsonHeaders.parse(data, 2, data.length - 4, req);
+		return req;
+	}
+
+}
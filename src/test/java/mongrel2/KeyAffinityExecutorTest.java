@@ -0,0 +1,82 @@
+package mongrel2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class KeyAffinityExecutorTest {
+
+	private static HttpRequest newRequest(final String path, final String cookie) {
+		final HttpRequest request = new HttpRequest();
+		request.setHeader("PATH", path);
+		if (cookie != null)
+			request.setHeader("Cookie", cookie);
+		return request;
+	}
+
+	@Test
+	public void testAffinity() throws Exception {
+
+		final KeyAffinityExecutor shards = new KeyAffinityExecutor(KeyAffinityExecutor.byCookie("SESSION"), 4, 10);
+
+		try {
+
+			final int[] seen = new int[2];
+			final CountDownLatch done = new CountDownLatch(2);
+			for (int i = 0; i < seen.length; i++) {
+				final int n = i;
+				shards.execute(newRequest("/", "theme=dark; SESSION=abc123"), new Runnable() {
+					@Override
+					public void run() {
+						seen[n] = KeyAffinityExecutor.currentShard();
+						done.countDown();
+					}
+				});
+			}
+
+			Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(seen[0], seen[1]);
+			Assert.assertEquals(shards.findShard(newRequest("/other", "SESSION=abc123")), seen[0]);
+			Assert.assertEquals(-1, KeyAffinityExecutor.currentShard());
+
+			// requests queued before shutdown still run
+			final CountDownLatch queued = new CountDownLatch(1);
+			shards.execute(newRequest("/", "SESSION=abc123"), new Runnable() {
+				@Override
+				public void run() {
+					queued.countDown();
+				}
+			});
+			shards.shutdown();
+			Assert.assertTrue(shards.awaitTermination(5, TimeUnit.SECONDS));
+			Assert.assertEquals(0, queued.getCount());
+
+		} finally {
+			shards.shutdown();
+		}
+
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		final HttpRequest request = newRequest("/users/42/orders", "a=1;SESSION= xyz ");
+		Assert.assertEquals("xyz", KeyAffinityExecutor.byCookie("SESSION").getKey(request));
+		Assert.assertNull(KeyAffinityExecutor.byCookie("other").getKey(request));
+		Assert.assertEquals("users", KeyAffinityExecutor.byPathSegment(0).getKey(request));
+		Assert.assertEquals("42", KeyAffinityExecutor.byPathSegment(1).getKey(request));
+		Assert.assertEquals("orders", KeyAffinityExecutor.byPathSegment(2).getKey(request));
+		Assert.assertNull(KeyAffinityExecutor.byPathSegment(3).getKey(request));
+
+		request.setHeader("QUERY", "user=j%C3%BCrgen&flag&bad=%z");
+		request.setHeader("content-type", "application/x-www-form-urlencoded");
+		request.setContent("form=1".getBytes());
+		Assert.assertEquals("j\u00fcrgen", KeyAffinityExecutor.byParameter("user").getKey(request));
+		Assert.assertEquals("", KeyAffinityExecutor.byParameter("flag").getKey(request));
+		Assert.assertEquals("1", KeyAffinityExecutor.byParameter("form").getKey(request));
+		Assert.assertNull(KeyAffinityExecutor.byParameter("bad").getKey(request));
+	}
+
+}
@@ -0,0 +1,42 @@
+package mongrel2;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class KnownHeadersTest {
+
+	@Test
+	public void testInterning() throws Exception {
+
+		final byte[] raw = ("sender 1 / 62:{\"PATH\":\"/\",\"METHOD\":\"GET\",\"host\":\"localhost:6767\","
+				+ "\"x-id\":\"7\"},0:,").getBytes("US-ASCII");
+		final Request first = new Request();
+		first.parse(raw);
+		final Request second = new Request();
+		second.parse(raw.clone());
+
+		Assert.assertSame(first.getSenderAddr(), second.getSenderAddr());
+		Assert.assertSame(first.getHeader("METHOD"), second.getHeader("METHOD"));
+		Assert.assertSame(first.getHeader("Host"), second.getHeader("Host"));
+		Assert.assertEquals("7", second.getHeader("X-Id"));
+
+	}
+
+	@Test
+	public void testSlots() throws Exception {
+
+		for (int slot = 0; slot < KnownHeaders.COUNT; slot++) {
+			final String name = KnownHeaders.NAMES[slot];
+			Assert.assertEquals(slot, KnownHeaders.slot(name));
+			Assert.assertEquals(slot, KnownHeaders.slot(name.toLowerCase()));
+		}
+
+		Assert.assertEquals(KnownHeaders.CONTENT_TYPE, KnownHeaders.slot(HttpHeader.CONTENT_TYPE));
+		Assert.assertEquals(-1, KnownHeaders.slot("X-Custom"));
+		Assert.assertEquals(-1, KnownHeaders.slot("HOS"));
+		Assert.assertEquals(-1, KnownHeaders.slot(""));
+
+	}
+
+}
@@ -0,0 +1,74 @@
+package mongrel2;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class LoopbackTransportTest {
+
+	@Test
+	public void testRequestResponse() throws Exception {
+
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+
+		// pushed before the handler connects
+		loopback.push("requests", FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+		handler.setActive(true);
+
+		try {
+
+			// no room, so the message stays queued
+			Assert.assertEquals(0, handler.takeRequests(new Request[0], 0, TimeUnit.SECONDS));
+
+			final HttpRequest req = new HttpRequest();
+			Assert.assertTrue(handler.takeRequest(req, 1, TimeUnit.SECONDS));
+			Assert.assertEquals("57", req.getRequestId());
+			Assert.assertFalse(handler.takeRequest(new HttpRequest(), 0, TimeUnit.SECONDS));
+
+			final HttpResponse rsp = new HttpResponse();
+			rsp.setStatus(HttpStatus.OK);
+			rsp.setContent("Hello, world!");
+			handler.sendResponse(rsp, req);
+
+			final String response = new String(loopback.poll("responses", 1, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(response.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 OK"));
+			Assert.assertTrue(response.endsWith("Hello, world!"));
+			Assert.assertNull(loopback.poll("responses", 0, TimeUnit.SECONDS));
+
+		} finally {
+			handler.setActive(false);
+		}
+
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler[] handlers = new Mongrel2Handler[2];
+		for (int i = 0; i < handlers.length; i++) {
+			handlers[i] = new Mongrel2Handler.Builder("test-sender-" + i).transport(loopback).recvAddr("requests")
+					.sendAddr("responses").build();
+			handlers[i].setActive(true);
+		}
+
+		try {
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			for (int i = 0; i < 4; i++)
+				loopback.push("requests", raw);
+			for (final Mongrel2Handler handler : handlers) {
+				final HttpRequest[] reqs = { new HttpRequest(), new HttpRequest(), new HttpRequest() };
+				Assert.assertEquals(2, handler.takeRequests(reqs, 0, TimeUnit.SECONDS));
+			}
+		} finally {
+			for (final Mongrel2Handler handler : handlers)
+				handler.setActive(false);
+		}
+
+	}
+
+}
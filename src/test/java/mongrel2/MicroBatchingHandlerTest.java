@@ -0,0 +1,166 @@
+package mongrel2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class MicroBatchingHandlerTest {
+
+	@Test
+	public void testBatching() throws Exception {
+
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final MicroBatchingHandler batcher = new MicroBatchingHandler(new BatchRequestHandler() {
+			@Override
+			public List<? extends Response> handleRequests(final List<HttpRequest> requests) throws Exception {
+				batchSizes.add(requests.size());
+				final List<HttpResponse> responses = new ArrayList<HttpResponse>();
+				for (final HttpRequest request : requests) {
+					final HttpResponse rsp = new HttpResponse();
+					rsp.setStatus(HttpStatus.OK);
+					rsp.setContent(request.getRequestId());
+					responses.add(rsp);
+				}
+				responses.set(requests.size() - 1, null);
+				return responses;
+			}
+		}, 3, 5, TimeUnit.SECONDS);
+
+		final CountDownLatch done = new CountDownLatch(3);
+		final List<String> answers = Collections.synchronizedList(new ArrayList<String>());
+		final Responder responder = new Responder() {
+			@Override
+			public void sendResponse(final Response response, final Request... recipients) throws IOException {
+				response.transform();
+				final String payload = new String(response.getPayload(), "UTF-8");
+				answers.add(recipients[0].getRequestId() + " " + payload.substring(9, 12) + " "
+						+ payload.substring(payload.lastIndexOf('\n') + 1));
+				done.countDown();
+			}
+		};
+
+		batcher.start();
+
+		try {
+
+			for (int i = 0; i < 3; i++) {
+				final HttpRequest request = new HttpRequest();
+				request.setRequestId(Integer.toString(i));
+				batcher.handleRequest(request, responder);
+			}
+
+			Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(Collections.singletonList(3), batchSizes);
+			Assert.assertEquals("0 200 0", answers.get(0));
+			Assert.assertEquals("1 200 1", answers.get(1));
+			Assert.assertTrue(answers.get(2).startsWith("2 500 "));
+
+		} finally {
+			batcher.stop();
+		}
+
+	}
+
+	@Test
+	public void testDispatched() throws Exception {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final MicroBatchingHandler batcher = new MicroBatchingHandler(new BatchRequestHandler() {
+			@Override
+			public List<? extends Response> handleRequests(final List<HttpRequest> requests) throws Exception {
+				release.await(5, TimeUnit.SECONDS);
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				return Collections.singletonList(rsp);
+			}
+		}, 1, 0, TimeUnit.MILLISECONDS);
+
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, batcher, 1);
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+		dispatcher.setConcurrencyLimiter(limiter);
+		batcher.start();
+		dispatcher.start();
+
+		try {
+
+			loopback.push("requests", FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+			Thread.sleep(200);
+
+			// the request handler has returned, but the batch has not answered yet
+			Assert.assertEquals(1, dispatcher.getInFlight());
+			Assert.assertEquals(1, limiter.getInFlight());
+
+			release.countDown();
+			final String ok = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(ok.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 OK"));
+			Assert.assertEquals(0, limiter.getInFlight());
+
+		} finally {
+			release.countDown();
+			dispatcher.stop();
+			batcher.stop();
+		}
+
+	}
+
+	@Test
+	public void testOverlappingBatches() throws Exception {
+
+		final CountDownLatch second = new CountDownLatch(1);
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		final MicroBatchingHandler batcher = new MicroBatchingHandler(new BatchRequestHandler() {
+			@Override
+			public List<? extends Response> handleRequests(final List<HttpRequest> requests) throws Exception {
+				if ("0".equals(requests.get(0).getRequestId()))
+					overlapped.set(second.await(5, TimeUnit.SECONDS));
+				else
+					second.countDown();
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				return Collections.singletonList(rsp);
+			}
+		}, 1, 0, TimeUnit.MILLISECONDS, executor);
+
+		final CountDownLatch done = new CountDownLatch(2);
+		final Responder responder = new Responder() {
+			@Override
+			public void sendResponse(final Response response, final Request... recipients) throws IOException {
+				done.countDown();
+			}
+		};
+
+		batcher.start();
+
+		try {
+
+			for (int i = 0; i < 2; i++) {
+				final HttpRequest request = new HttpRequest();
+				request.setRequestId(Integer.toString(i));
+				batcher.handleRequest(request, responder);
+			}
+
+			Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+			Assert.assertTrue(overlapped.get());
+
+		} finally {
+			batcher.stop();
+			executor.shutdown();
+		}
+
+	}
+
+}
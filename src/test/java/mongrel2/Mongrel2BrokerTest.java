@@ -0,0 +1,155 @@
+package mongrel2;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+public class Mongrel2BrokerTest {
+
+	private static final String RECV_ADDR = "tcp://127.0.0.1:56120";
+	private static final String SEND_ADDR = "tcp://127.0.0.1:56121";
+	private static final String WORKER_ADDR = "tcp://127.0.0.1:56122";
+
+	private static byte[] receiveRequest(final ZMQ.Context context, final ZMQ.Socket worker, final long timeout) {
+		final ZMQ.Poller poller = context.poller(1);
+		poller.register(worker, ZMQ.Poller.POLLIN);
+		if (poller.poll(timeout) <= 0)
+			return null;
+		final byte[] command = worker.recv(0);
+		final byte[] payload = worker.recv(0);
+		return Arrays.equals(command, Mongrel2Broker.CMD_REQUEST) ? payload : null;
+	}
+
+	@Test
+	public void testCompletion() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2(SEND_ADDR, RECV_ADDR);
+		final Mongrel2Broker broker = new Mongrel2Broker(new Mongrel2Handler("test-broker", RECV_ADDR, SEND_ADDR),
+				WORKER_ADDR);
+		broker.start();
+
+		final ZMQ.Context context = ZMQ.context(1);
+		final ZMQ.Socket worker = context.socket(ZMQ.DEALER);
+		worker.setIdentity("raw-worker".getBytes());
+		worker.setLinger(0);
+		worker.connect(WORKER_ADDR);
+
+		try {
+
+			// a malformed heartbeat is ignored
+			worker.send(Mongrel2Broker.CMD_HEARTBEAT, ZMQ.SNDMORE);
+			worker.send("many".getBytes(), 0);
+
+			// a heartbeat announces an unknown worker, as after a restart of the broker
+			worker.send(Mongrel2Broker.CMD_HEARTBEAT, ZMQ.SNDMORE);
+			worker.send("1".getBytes(), 0);
+			FakeMongrel2.awaitConnections();
+
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			mongrel2.send(raw);
+			mongrel2.send(raw);
+			Assert.assertNotNull(receiveRequest(context, worker, 2000));
+
+			// a response alone does not complete the request
+			worker.send(Mongrel2Broker.CMD_RESPONSE, ZMQ.SNDMORE);
+			worker.send("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, part".getBytes(), 0);
+			Assert.assertNull(receiveRequest(context, worker, 500));
+
+			worker.send(Mongrel2Broker.CMD_DONE, ZMQ.SNDMORE);
+			worker.send("54c6755b-9628-40a4-9a2d-cc82a816345e 57".getBytes(), 0);
+			Assert.assertNotNull(receiveRequest(context, worker, 2000));
+			Assert.assertTrue(broker.isRunning());
+
+		} finally {
+			worker.close();
+			broker.stop();
+			mongrel2.close();
+			context.term();
+		}
+
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2(SEND_ADDR, RECV_ADDR);
+		final Mongrel2Broker broker = new Mongrel2Broker(new Mongrel2Handler("test-broker", RECV_ADDR, SEND_ADDR),
+				WORKER_ADDR);
+		broker.start();
+
+		final ZMQ.Context context = ZMQ.context(1);
+		final ZMQ.Socket worker = context.socket(ZMQ.DEALER);
+		worker.setIdentity("raw-worker".getBytes());
+		worker.setLinger(0);
+		worker.connect(WORKER_ADDR);
+
+		try {
+
+			worker.send(Mongrel2Broker.CMD_READY, ZMQ.SNDMORE);
+			worker.send("2".getBytes(), 0);
+			FakeMongrel2.awaitConnections();
+
+			// three requests on the same connection
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			for (int i = 0; i < 3; i++)
+				mongrel2.send(raw);
+			Assert.assertNotNull(receiveRequest(context, worker, 2000));
+			Assert.assertNotNull(receiveRequest(context, worker, 2000));
+			Assert.assertNull(receiveRequest(context, worker, 500));
+
+			// completing one frees a single slot
+			worker.send(Mongrel2Broker.CMD_DONE, ZMQ.SNDMORE);
+			worker.send("54c6755b-9628-40a4-9a2d-cc82a816345e 57".getBytes(), 0);
+			Assert.assertNotNull(receiveRequest(context, worker, 2000));
+
+		} finally {
+			worker.close();
+			broker.stop();
+			mongrel2.close();
+			context.term();
+		}
+
+	}
+
+	@Test
+	public void testRelay() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2(SEND_ADDR, RECV_ADDR);
+		final Mongrel2Broker broker = new Mongrel2Broker(new Mongrel2Handler("test-broker", RECV_ADDR, SEND_ADDR),
+				WORKER_ADDR);
+
+		final Mongrel2Handler worker = new Mongrel2Handler.Builder("test-worker").transport(new BrokerTransport(2))
+				.recvAddr(WORKER_ADDR).sendAddr(WORKER_ADDR).build();
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(worker, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				rsp.setContent("worked " + request.getPathInfo());
+				responder.sendResponse(rsp, request);
+			}
+		}, 2);
+
+		broker.start();
+		dispatcher.start();
+		FakeMongrel2.awaitConnections();
+
+		try {
+
+			final String response = mongrel2.request(FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+			Assert.assertNotNull(response);
+			Assert.assertTrue(response.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 OK\r\n"));
+			Assert.assertTrue(response.endsWith("\r\n\r\nworked for/a/string"));
+
+		} finally {
+			dispatcher.stop();
+			broker.stop();
+			mongrel2.close();
+		}
+
+	}
+
+}
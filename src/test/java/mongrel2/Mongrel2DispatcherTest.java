@@ -0,0 +1,217 @@
+package mongrel2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class Mongrel2DispatcherTest {
+
+	private static final String RECV_ADDR = "tcp://127.0.0.1:56106";
+	private static final String SEND_ADDR = "tcp://127.0.0.1:56107";
+
+	@Test
+	public void testDrain() throws Exception {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				started.countDown();
+				Thread.sleep(300);
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				responder.sendResponse(rsp, request);
+			}
+		}, 1);
+		dispatcher.start();
+
+		try {
+
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			loopback.push("requests", raw);
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(1, dispatcher.getInFlight());
+
+			final AtomicBoolean drained = new AtomicBoolean();
+			final Thread drainer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						drained.set(dispatcher.drain(5, TimeUnit.SECONDS));
+					} catch (final InterruptedException x) {
+						// fails below
+					}
+				}
+			};
+			drainer.start();
+			Thread.sleep(100);
+			loopback.push("requests", raw); // queued, but no longer pulled
+			drainer.join();
+
+			Assert.assertTrue(drained.get());
+			Assert.assertFalse(dispatcher.isRunning());
+			Assert.assertEquals(0, dispatcher.getInFlight());
+
+			final String ok = new String(loopback.poll("responses", 1, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(ok.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 "));
+			final String rejected = new String(loopback.poll("responses", 1, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(rejected.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 503 "));
+
+		} finally {
+			dispatcher.stop();
+		}
+
+	}
+
+	@Test
+	public void testMalformedHeaders() throws Exception {
+
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				responder.sendResponse(rsp, request);
+			}
+		}, 1);
+		dispatcher.setTimeout(10, TimeUnit.SECONDS);
+		dispatcher.start();
+
+		try {
+
+			final String malformed = "54c6755b-9628-40a4-9a2d-cc82a816345e 3 / 8:{\"A\":\"b\",0:,";
+			loopback.push("requests", malformed.getBytes("US-ASCII"));
+			loopback.push("requests", FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+
+			final String bad = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(bad.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 1:3, HTTP/1.1 400 "));
+			final String ok = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(ok.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 OK"));
+			Assert.assertTrue(dispatcher.isRunning());
+
+		} finally {
+			dispatcher.stop();
+		}
+
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2(SEND_ADDR, RECV_ADDR);
+
+		final Mongrel2Handler handler = new Mongrel2Handler("test-sender", RECV_ADDR, SEND_ADDR);
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				rsp.setContent(request.getPathInfo());
+				responder.sendResponse(rsp, request);
+			}
+		}, 2);
+		dispatcher.start();
+
+		FakeMongrel2.awaitConnections();
+
+		try {
+
+			final String response = mongrel2.request(FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+			Assert.assertNotNull(response);
+			Assert.assertTrue(response.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 OK\r\n"));
+			Assert.assertTrue(response.endsWith("\r\n\r\nfor/a/string"));
+
+		} finally {
+			dispatcher.stop();
+			mongrel2.close();
+		}
+
+	}
+
+	@Test
+	public void testShedding() throws Exception {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				release.await();
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				responder.sendResponse(rsp, request);
+			}
+		}, 2);
+		dispatcher.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(1, 1, 1));
+		dispatcher.start();
+
+		try {
+
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			loopback.push("requests", raw);
+			loopback.push("requests", raw);
+
+			final String shed = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(shed.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 503 "));
+
+			release.countDown();
+			final String ok = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(ok.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 200 OK"));
+
+		} finally {
+			release.countDown();
+			dispatcher.stop();
+		}
+
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+		final Mongrel2Dispatcher dispatcher = new Mongrel2Dispatcher(handler, new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				while (!request.isCancelled() && request.getRemainingTime(TimeUnit.SECONDS) > -5)
+					Thread.sleep(10);
+				cancelled.set(request.isCancelled());
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				responder.sendResponse(rsp, request);
+			}
+		}, 1);
+		dispatcher.setTimeout(10, TimeUnit.SECONDS);
+		dispatcher.setTimeout("/search/", 100, TimeUnit.MILLISECONDS);
+		dispatcher.start();
+
+		try {
+
+			loopback.push("requests", FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+
+			final String response = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(response.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 2:57, HTTP/1.1 504 "));
+			Assert.assertNull(loopback.poll("responses", 500, TimeUnit.MILLISECONDS));
+			Assert.assertTrue(cancelled.get());
+
+		} finally {
+			dispatcher.stop();
+		}
+
+	}
+
+}
@@ -0,0 +1,76 @@
+package mongrel2;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class Mongrel2EventLoopTest {
+
+	private static RequestHandler reply(final String text) {
+		return new RequestHandler() {
+			@Override
+			public void handleRequest(final HttpRequest request, final Responder responder) throws Exception {
+				final HttpResponse rsp = new HttpResponse();
+				rsp.setStatus(HttpStatus.OK);
+				rsp.setContent(text);
+				responder.sendResponse(rsp, request);
+			}
+		};
+	}
+
+	@Test
+	public void testMultipleHandlers() throws Exception {
+
+		// mongrel2 with two handler definitions
+		final FakeMongrel2 mongrel2 = new FakeMongrel2("tcp://127.0.0.1:56101", "tcp://127.0.0.1:56102",
+				"tcp://127.0.0.1:56103");
+
+		final Mongrel2EventLoop loop = new Mongrel2EventLoop();
+		loop.register(new Mongrel2Handler("h1", "tcp://127.0.0.1:56102", "tcp://127.0.0.1:56101"), reply("one"));
+		final Mongrel2Handler h2 = new Mongrel2Handler("h2", "tcp://127.0.0.1:56103", "tcp://127.0.0.1:56101");
+		loop.register(h2, reply("two"));
+		loop.register(h2, "/search/", reply("search"));
+		loop.start();
+
+		FakeMongrel2.awaitConnections();
+
+		try {
+
+			final byte[] request = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			final StringBuilder bodies = new StringBuilder();
+			for (int i = 0; i < 2; i++) {
+				final String response = mongrel2.request(i, request);
+				Assert.assertNotNull(response);
+				bodies.append(response.substring(response.indexOf("\r\n\r\n") + 4)).append(' ');
+			}
+
+			Assert.assertTrue(bodies.indexOf("one ") > -1);
+			Assert.assertTrue(bodies.indexOf("search ") > -1);
+			Assert.assertEquals(-1, bodies.indexOf("two "));
+
+		} finally {
+			loop.stop();
+			mongrel2.close();
+		}
+
+	}
+
+	@Test
+	public void testNonZmqTransport() throws Exception {
+
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("test-sender")
+				.transport(new LoopbackTransport()).recvAddr("requests").sendAddr("responses").build();
+		final Mongrel2EventLoop loop = new Mongrel2EventLoop();
+		loop.register(handler, reply("one"));
+		loop.start();
+
+		// the loop refuses the handler and stops by itself
+		for (int i = 0; i < 100 && loop.isRunning(); i++)
+			Thread.sleep(50);
+		Assert.assertFalse(loop.isRunning());
+		Assert.assertFalse(handler.isActive());
+		loop.stop();
+
+	}
+
+}
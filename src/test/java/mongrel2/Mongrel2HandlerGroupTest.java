@@ -0,0 +1,62 @@
+package mongrel2;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class Mongrel2HandlerGroupTest {
+
+	private static final String RECV_ADDR = "tcp://127.0.0.1:56104";
+	private static final String SEND_ADDR = "tcp://127.0.0.1:56105";
+
+	@Test
+	public void testShards() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2(SEND_ADDR, RECV_ADDR);
+		final Mongrel2HandlerGroup group = new Mongrel2HandlerGroup("group", RECV_ADDR, SEND_ADDR, 3, 2);
+		Assert.assertEquals(3, group.getShardCount());
+
+		group.start(new RequestHandlerFactory() {
+			@Override
+			public RequestHandler newRequestHandler(final int shard) {
+				return new RequestHandler() {
+					@Override
+					public void handleRequest(final HttpRequest request, final Responder responder)
+							throws Exception {
+						final HttpResponse rsp = new HttpResponse();
+						rsp.setStatus(HttpStatus.OK);
+						rsp.setContent("shard-" + shard);
+						responder.sendResponse(rsp, request);
+					}
+				};
+			}
+		});
+
+		FakeMongrel2.awaitConnections();
+
+		try {
+
+			Assert.assertEquals("group-1", group.getHandler(1).getSenderId());
+
+			final byte[] request = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			final Set<String> shards = new HashSet<String>();
+			for (int i = 0; i < 12 && shards.size() < 3; i++) {
+				final String response = mongrel2.request(request);
+				Assert.assertNotNull(response);
+				shards.add(response.substring(response.indexOf("\r\n\r\n") + 4));
+			}
+
+			// push sockets distribute round-robin between connected shards
+			Assert.assertEquals(3, shards.size());
+
+		} finally {
+			group.stop();
+			mongrel2.close();
+		}
+
+	}
+
+}
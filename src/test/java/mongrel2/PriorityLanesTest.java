@@ -0,0 +1,70 @@
+package mongrel2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class PriorityLanesTest {
+
+	private static HttpRequest newRequest(final String requestId) {
+		final HttpRequest request = new HttpRequest();
+		request.setRequestId(requestId);
+		return request;
+	}
+
+	@Test
+	public void testLanes() throws Exception {
+
+		final PriorityLanes lanes = new PriorityLanes(new RequestClassifier() {
+			@Override
+			public int classify(final HttpRequest request) {
+				return request.getRequestId().equals("health") ? 0 : 1;
+			}
+		}, new int[] { 1, 1 }, 1);
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch healthy = new CountDownLatch(1);
+		final Runnable slow = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (final InterruptedException x) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		try {
+
+			// one running and one queued saturate the slow lane
+			lanes.execute(newRequest("report"), slow);
+			lanes.execute(newRequest("report"), slow);
+			try {
+				lanes.execute(newRequest("report"), slow);
+				Assert.fail();
+			} catch (final RejectedExecutionException x) {
+				// expected
+			}
+			Assert.assertEquals(1, lanes.getQueueDepth(1));
+
+			lanes.execute(newRequest("health"), new Runnable() {
+				@Override
+				public void run() {
+					healthy.countDown();
+				}
+			});
+			Assert.assertTrue(healthy.await(5, TimeUnit.SECONDS));
+
+		} finally {
+			release.countDown();
+			lanes.shutdown();
+		}
+
+	}
+
+}
@@ -0,0 +1,121 @@
+package mongrel2;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RequestPublisherTest {
+
+	private static final String RECV_ADDR = "tcp://127.0.0.1:56112";
+	private static final String SEND_ADDR = "tcp://127.0.0.1:56113";
+
+	private static class QueueSubscriber implements RequestPublisher.Subscriber {
+
+		volatile boolean completed = false;
+		volatile Throwable error = null;
+		final BlockingQueue<HttpRequest> requests = new LinkedBlockingQueue<HttpRequest>();
+		volatile RequestPublisher.Subscription subscription = null;
+
+		@Override
+		public void onComplete() {
+			this.completed = true;
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {
+			this.error = throwable;
+		}
+
+		@Override
+		public void onNext(final HttpRequest request) {
+			this.requests.add(request);
+		}
+
+		@Override
+		public void onSubscribe(final RequestPublisher.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+	}
+
+	@Test
+	public void testDemand() throws Exception {
+
+		final FakeMongrel2 mongrel2 = new FakeMongrel2(SEND_ADDR, RECV_ADDR);
+		final RequestPublisher publisher = new RequestPublisher(new Mongrel2Handler("test-sender", RECV_ADDR,
+				SEND_ADDR));
+		final QueueSubscriber subscriber = new QueueSubscriber();
+		publisher.subscribe(subscriber);
+		FakeMongrel2.awaitConnections();
+
+		try {
+
+			final byte[] raw = FakeMongrel2.getResourceAsByteArray("test-request.txt");
+			for (int i = 0; i < 5; i++)
+				mongrel2.send(raw);
+
+			// nothing is pulled without demand
+			Assert.assertNull(subscriber.requests.poll(250, TimeUnit.MILLISECONDS));
+
+			subscriber.subscription.request(2);
+			Assert.assertNotNull(subscriber.requests.poll(5, TimeUnit.SECONDS));
+			Assert.assertNotNull(subscriber.requests.poll(5, TimeUnit.SECONDS));
+			Assert.assertNull(subscriber.requests.poll(250, TimeUnit.MILLISECONDS));
+			Assert.assertEquals(0, publisher.getDemand());
+
+			subscriber.subscription.request(10);
+			for (int i = 0; i < 3; i++)
+				Assert.assertNotNull(subscriber.requests.poll(5, TimeUnit.SECONDS));
+			Assert.assertEquals(7, publisher.getDemand());
+
+			// a second subscriber is refused
+			final QueueSubscriber second = new QueueSubscriber();
+			publisher.subscribe(second);
+			Assert.assertTrue(second.error instanceof IllegalStateException);
+
+			mongrel2.awaitPublisher(publisher);
+
+		} finally {
+			publisher.close();
+			mongrel2.close();
+		}
+
+		Assert.assertTrue(subscriber.completed);
+		Assert.assertNull(subscriber.error);
+
+	}
+
+	@Test
+	public void testMalformedHeaders() throws Exception {
+
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final RequestPublisher publisher = new RequestPublisher(new Mongrel2Handler.Builder("test-sender")
+				.transport(loopback).recvAddr("requests").sendAddr("responses").build());
+		final QueueSubscriber subscriber = new QueueSubscriber();
+		publisher.subscribe(subscriber);
+
+		try {
+
+			final String malformed = "54c6755b-9628-40a4-9a2d-cc82a816345e 3 / 8:{\"A\":\"b\",0:,";
+			loopback.push("requests", malformed.getBytes("US-ASCII"));
+			loopback.push("requests", FakeMongrel2.getResourceAsByteArray("test-request.txt"));
+			subscriber.subscription.request(2);
+
+			// the malformed request is answered, the next one delivered
+			final String bad = new String(loopback.poll("responses", 5, TimeUnit.SECONDS), "US-ASCII");
+			Assert.assertTrue(bad.startsWith("54c6755b-9628-40a4-9a2d-cc82a816345e 1:3, HTTP/1.1 400 "));
+			Assert.assertNotNull(subscriber.requests.poll(5, TimeUnit.SECONDS));
+			Assert.assertEquals(1, publisher.getDemand());
+			Assert.assertNull(subscriber.error);
+
+		} finally {
+			publisher.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,56 @@
+package mongrel2;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TNetStringsTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("what", "net");
+		map.put("count", 12L);
+		map.put("ratio", 0.5);
+		map.put("ok", true);
+		map.put("none", null);
+		map.put("list", Arrays.<Object> asList("a", 1L));
+
+		final byte[] encoded = TNetStrings.encode(Arrays.asList("status", map));
+		Assert.assertEquals(Arrays.asList("status", map), TNetStrings.parse(encoded));
+
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		final Map<String, Object> args = new LinkedHashMap<String, Object>();
+		args.put("what", "net");
+		Assert.assertEquals("26:6:status,13:4:what,3:net,}]",
+				new String(TNetStrings.encode(Arrays.asList("status", args)), "UTF-8"));
+	}
+
+	@Test
+	public void testParseStatus() throws Exception {
+		final Object reply = TNetStrings.parse("43:7:headers,5:2:id,]4:rows,14:4:1:1#]4:1:2#]]}".getBytes("UTF-8"));
+		final List<?> rows = (List<?>) ((Map<?, ?>) reply).get("rows");
+		Assert.assertEquals(2, rows.size());
+		Assert.assertEquals(Arrays.asList(2L), rows.get(1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseLengthOverflow() throws Exception {
+		TNetStrings.parse("2147483648:abc,".getBytes("UTF-8"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseTruncated() throws Exception {
+		TNetStrings.parse("10:abc,".getBytes("UTF-8"));
+	}
+
+}
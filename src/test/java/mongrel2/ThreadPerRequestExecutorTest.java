@@ -0,0 +1,47 @@
+package mongrel2;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ThreadPerRequestExecutorTest {
+
+	@Test
+	public void testThreadPerTask() throws Exception {
+
+		final int tasks = 16;
+		final ThreadPerRequestExecutor exec = new ThreadPerRequestExecutor();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(tasks);
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+
+		for (int i = 0; i < tasks; i++) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					threads.add(Thread.currentThread());
+					try {
+						release.await();
+					} catch (final InterruptedException x) {
+						// ignore
+					}
+					done.countDown();
+				}
+			});
+		}
+
+		// all tasks block at the same time, each on its own thread
+		Assert.assertEquals(tasks, exec.getActiveCount());
+		release.countDown();
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(tasks, threads.size());
+
+	}
+
+}
@@ -0,0 +1,98 @@
+package mongrel2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+public class WorkerPoolAutoscalerTest {
+
+	private static final String CONTROL_ADDR = "tcp://127.0.0.1:56123";
+
+	/**
+	 * Stands in for the Mongrel2 control port, answering status commands with
+	 * the given number of connections.
+	 */
+	private static Thread startControlPort(final ZMQ.Context context, final int connections,
+			final AtomicBoolean running) {
+
+		final ZMQ.Socket rep = context.socket(ZMQ.REP);
+		rep.setLinger(0);
+		rep.bind(CONTROL_ADDR);
+
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final ZMQ.Poller poller = context.poller(1);
+				poller.register(rep, ZMQ.Poller.POLLIN);
+				while (running.get()) {
+					if (poller.poll(100) <= 0)
+						continue;
+					final List<?> command = (List<?>) TNetStrings.parse(rep.recv(0));
+					Assert.assertEquals("status", command.get(0));
+					final List<Object> rows = new ArrayList<Object>();
+					for (int i = 0; i < connections; i++)
+						rows.add(Arrays.<Object> asList((long) i));
+					final Map<String, Object> reply = new LinkedHashMap<String, Object>();
+					reply.put("headers", Arrays.<Object> asList("id"));
+					reply.put("rows", rows);
+					rep.send(TNetStrings.encode(reply), 0);
+				}
+				rep.close();
+			}
+		});
+		thread.start();
+		return thread;
+
+	}
+
+	@Test
+	public void testAutoscale() throws Exception {
+
+		final ZMQ.Context context = ZMQ.context(1);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Thread controlPort = startControlPort(context, 45, running);
+		final ControlPortClient client = new ControlPortClient(CONTROL_ADDR, 5000);
+		final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+		final WorkerPoolAutoscaler autoscaler = new WorkerPoolAutoscaler(client, pool, 2, 8, 10);
+
+		try {
+
+			Assert.assertEquals(45, client.getConnectionCount());
+
+			autoscaler.setInterval(50, TimeUnit.MILLISECONDS);
+			autoscaler.start();
+			for (int i = 0; i < 100 && pool.getCorePoolSize() != 5; i++)
+				Thread.sleep(50);
+			Assert.assertEquals(5, pool.getCorePoolSize());
+			Assert.assertEquals(5, pool.getMaximumPoolSize());
+			autoscaler.stop();
+
+			// shrinks by half the surplus, grows at once
+			Assert.assertEquals(4, autoscaler.resize(20));
+			Assert.assertEquals(3, autoscaler.resize(20));
+			Assert.assertEquals(2, autoscaler.resize(0));
+			Assert.assertEquals(8, autoscaler.resize(1000));
+
+		} finally {
+			autoscaler.stop();
+			client.close();
+			pool.shutdown();
+			running.set(false);
+			controlPort.join();
+			context.term();
+		}
+
+	}
+
+}
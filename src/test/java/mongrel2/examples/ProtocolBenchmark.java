@@ -0,0 +1,99 @@
+package mongrel2.examples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mongrel2.HttpRequest;
+import mongrel2.LoopbackTransport;
+import mongrel2.Mongrel2Handler;
+import mongrel2.TNetStrings;
+
+/**
+ * Compares the cost of receiving and parsing the same request sent with the
+ * json and with the tnetstring handler protocol, over an in-memory transport.
+ * 
+ * <pre>
+ * java -cp ... mongrel2.examples.ProtocolBenchmark [iterations]
+ * </pre>
+ */
+public class ProtocolBenchmark {
+
+	private static final String PREFIX = "54c6755b-9628-40a4-9a2d-cc82a816345e 57 /search/for/a/string ";
+	private static final int ROUNDS = 5;
+
+	public static void main(final String[] args) throws Exception {
+
+		final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+		final LoopbackTransport loopback = new LoopbackTransport();
+		final Mongrel2Handler handler = new Mongrel2Handler.Builder("benchmark").transport(loopback)
+				.recvAddr("requests").sendAddr("responses").build();
+		handler.setActive(true);
+
+		try {
+
+			final byte[] json = readResource("/mongrel2/test-request.txt");
+			final byte[] tnetstring = toTNetString(handler, loopback, json);
+
+			for (int round = 1; round <= ROUNDS; round++) {
+				final long jsonNanos = run(handler, loopback, json, iterations);
+				final long tnetNanos = run(handler, loopback, tnetstring, iterations);
+				System.out.printf("round %d: json %,d ns/request, tnetstring %,d ns/request%n", round, jsonNanos
+						/ iterations, tnetNanos / iterations);
+			}
+
+		} finally {
+			handler.setActive(false);
+		}
+
+	}
+
+	private static byte[] readResource(final String resource) throws Exception {
+		int len = 0;
+		final byte[] buf = new byte[1024];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final InputStream in = ProtocolBenchmark.class.getResourceAsStream(resource);
+		while ((len = in.read(buf)) > -1)
+			out.write(buf, 0, len);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static long run(final Mongrel2Handler handler, final LoopbackTransport loopback, final byte[] message,
+			final int iterations) {
+		final HttpRequest req = new HttpRequest();
+		final long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			loopback.push("requests", message);
+			handler.takeRequest(req);
+			if (req.getHeader("user-agent") == null)
+				throw new IllegalStateException("headers not parsed");
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Re-encodes the headers of a json request with the tnetstring protocol.
+	 */
+	private static byte[] toTNetString(final Mongrel2Handler handler, final LoopbackTransport loopback,
+			final byte[] json) throws Exception {
+
+		final HttpRequest req = new HttpRequest();
+		loopback.push("requests", json);
+		handler.takeRequest(req);
+
+		final Map<String, Object> headers = new LinkedHashMap<String, Object>();
+		for (final String name : req.getHeaderNames())
+			headers.put(name, req.getHeader(name));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(PREFIX.getBytes("US-ASCII"));
+		out.write(TNetStrings.encode(headers));
+		out.write("0:,".getBytes("US-ASCII"));
+		return out.toByteArray();
+
+	}
+
+}
@@ -1,15 +1,14 @@
 package mongrel2.examples;
 
-import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 import mongrel2.HttpRequest;
 import mongrel2.HttpResponse;
 import mongrel2.HttpStatus;
-import mongrel2.Mongrel2Handler;
+import mongrel2.Mongrel2HandlerGroup;
+import mongrel2.RequestHandler;
+import mongrel2.RequestHandlerFactory;
+import mongrel2.Responder;
 
-public class TestApp implements Runnable {
+public class TestApp implements RequestHandler {
 
 	// The socket on which the handler will receive messages. The same as the
 	// send_spec in the mongrel2 handler configuration.
@@ -25,10 +24,8 @@ public class TestApp implements Runnable {
 
 	public static void main(final String[] args) throws Exception {
 
-		final ExecutorService exec = Executors.newFixedThreadPool(SENDERS.length);
-		final TestApp[] apps = new TestApp[SENDERS.length];
-		for (int i = 0; i < SENDERS.length; i++)
-			apps[i] = new TestApp(SENDERS[i]);
+		// all senders share one ZeroMQ context with a single I/O thread
+		final Mongrel2HandlerGroup group = new Mongrel2HandlerGroup(SENDERS, RECV_ADDR, SEND_ADDR, 1);
 
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
@@ -37,65 +34,52 @@ public class TestApp implements Runnable {
 				System.out.println();
 				System.out.println("Signal caught, exiting ...");
 
-				for (final TestApp app : apps)
-					app.handler.setActive(false);
+				try {
+					group.stop();
+				} catch (final InterruptedException x) {
+					// exiting anyway
+				}
 
-				exec.shutdownNow();
+				for (final String senderId : SENDERS)
+					System.out.printf("Exiting handler with sender id: %s%n", senderId);
 
 			}
 		});
 
 		System.out.println("Running. Ctrl-c to quit.");
 
-		for (final TestApp app : apps)
-			exec.submit(app);
+		group.start(new RequestHandlerFactory() {
+			@Override
+			public RequestHandler newRequestHandler(final int shard) {
+				System.out.printf("Started handler with sender id: %s%n", SENDERS[shard]);
+				return new TestApp(SENDERS[shard]);
+			}
+		});
 
 	}
 
-	private final Mongrel2Handler handler;
-
 	private final String senderId;
 
 	public TestApp(final String senderId) {
 		this.senderId = senderId;
-		this.handler = new Mongrel2Handler(this.senderId, RECV_ADDR, SEND_ADDR);
 	}
 
 	@Override
-	public void run() {
-
-		this.handler.setActive(true);
-
-		System.out.printf("Started handler with sender id: %s%n", this.senderId);
+	public void handleRequest(final HttpRequest req, final Responder responder) throws Exception {
 
-		while (this.handler.isActive()) {
-
-			try {
-
-				final HttpRequest req = new HttpRequest();
-				this.handler.takeRequest(req);
-
-				final long now = System.currentTimeMillis();
-				System.out.printf("%tH:%tM:%tS - %s %s%n", now, now, now, this.senderId, req.getRequestURL());
-
-				final HttpResponse rsp = new HttpResponse();
-				rsp.setContent("Hello, world!\n");
-				rsp.setStatus(HttpStatus.OK);
-				// rsp.setStatus(HttpStatus.BadRequest.code, "Nice Try");
-				rsp.setHeader("Cache-Control", "public");
-				rsp.setHeader("X-Handler-App", "TestApp");
-				rsp.setHeader("X-Sender-Id", this.senderId);
-				rsp.setDateHeader("Last-Updated", System.currentTimeMillis());
-
-				this.handler.sendResponse(rsp, req);
-
-			} catch (final IOException x) {
-				x.printStackTrace();
-			}
+		final long now = System.currentTimeMillis();
+		System.out.printf("%tH:%tM:%tS - %s %s%n", now, now, now, this.senderId, req.getRequestURL());
 
-		} // while
+		final HttpResponse rsp = new HttpResponse();
+		rsp.setContent("Hello, world!\n");
+		rsp.setStatus(HttpStatus.OK);
+		// rsp.setStatus(HttpStatus.BadRequest.code, "Nice Try");
+		rsp.setHeader("Cache-Control", "public");
+		rsp.setHeader("X-Handler-App", "TestApp");
+		rsp.setHeader("X-Sender-Id", this.senderId);
+		rsp.setDateHeader("Last-Updated", System.currentTimeMillis());
 
-		System.out.printf("Exiting handler with sender id: %s%n", this.senderId);
+		responder.sendResponse(rsp, req);
 
 	}
 